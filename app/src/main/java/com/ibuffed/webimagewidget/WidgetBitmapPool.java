@@ -0,0 +1,93 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * Bounded pool of bitmaps already pushed to widgets. RemoteViews copies the
+ * pixels when the widget is updated, so the memory can be reused by the next
+ * decode (BitmapFactory.Options.inBitmap).
+ */
+public class WidgetBitmapPool
+{
+    private static final long MAX_SIZE = Math.min(
+            Runtime.getRuntime().maxMemory() / 8,
+            32L * 1024L * 1024L  // 32 MiB
+    );
+
+    private static final List<Bitmap> pool = new ArrayList<>();
+    private static long size = 0;
+
+    private static int getBytesPerPixel(Bitmap.Config config)
+    {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+            return 2;
+
+        if (config == Bitmap.Config.ALPHA_8)
+            return 1;
+
+        return 4;
+    }
+
+    /*
+     * Smallest pooled bitmap of this config big enough for width x height,
+     * null if there is none.
+     */
+    @Nullable
+    public static synchronized Bitmap get(int width, int height, Bitmap.Config config)
+    {
+        long needed = (long) width * height * getBytesPerPixel(config);
+        Bitmap best = null;
+
+        for (Bitmap bitmap : pool)
+            if (bitmap.getConfig() == config &&
+                    bitmap.getAllocationByteCount() >= needed &&
+                    (best == null ||
+                            bitmap.getAllocationByteCount() < best.getAllocationByteCount()))
+                best = bitmap;
+
+        if (best != null) {
+            pool.remove(best);
+            size -= best.getAllocationByteCount();
+        }
+
+        return best;
+    }
+
+    public static synchronized void put(@Nullable Bitmap bitmap)
+    {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled())
+            return;
+
+        long bytes = bitmap.getAllocationByteCount();
+
+        if (bytes > MAX_SIZE || pool.contains(bitmap))
+            return;
+
+        // Drop oldest bitmaps to make room
+        while (size + bytes > MAX_SIZE)
+            size -= pool.remove(0).getAllocationByteCount();
+
+        pool.add(bitmap);
+        size += bytes;
+    }
+
+    /*
+     * Forget every pooled bitmap, so the next decode allocates again.
+     */
+    @VisibleForTesting
+    public static synchronized void clear()
+    {
+        pool.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/*
+ * On-disk cache of the last downloaded image of every widget. One entry per
+ * widget keyed by widget id and url, least recently used entries are evicted
+ * when the total size exceeds MAX_SIZE.
+ */
+public class WidgetCache
+{
+    private static final String CACHE_DIR = "images";
+    private static final long MAX_SIZE = 32L * 1024L * 1024L;  // 32 MiB
+
+    private static void log(String msg)
+    {
+        Log.i("WidgetCache", msg);
+    }
+
+    @NonNull
+    private static File getDir(Context context)
+    {
+        return new File(context.getNoBackupFilesDir(), CACHE_DIR);
+    }
+
+    @NonNull
+    private static String getPrefix(int appWidgetId)
+    {
+        return appWidgetId + "-";
+    }
+
+    @NonNull
+    private static File getFile(Context context, int appWidgetId, @NonNull String url)
+    {
+        return new File(
+                getDir(context),
+                getPrefix(appWidgetId) + Integer.toHexString(url.hashCode())
+        );
+    }
+
+    @NonNull
+    private static File[] listFiles(Context context, @Nullable String prefix)
+    {
+        File[] files = getDir(context).listFiles(
+                (dir, name) -> prefix == null || name.startsWith(prefix)
+        );
+
+        return files == null ? new File[0] : files;
+    }
+
+    @Nullable
+    public static synchronized byte[] get(Context context, int appWidgetId, String url)
+    {
+        if (url == null || url.isEmpty())
+            return null;
+
+        File file = getFile(context, appWidgetId, url);
+
+        if (!file.isFile())
+            return null;
+
+        byte[] data = new byte[(int) file.length()];
+
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            int offset = 0;
+            int n;
+
+            while (offset < data.length &&
+                    (n = inputStream.read(data, offset, data.length - offset)) != -1)
+                offset += n;
+
+            if (offset < data.length)
+                return null;
+        } catch (IOException e) {
+            log("read failed: " + e);
+            return null;
+        }
+
+        // Mark as recently used
+        file.setLastModified(System.currentTimeMillis());
+
+        return data;
+    }
+
+    public static synchronized void put(Context context,
+                                        int appWidgetId,
+                                        @NonNull String url,
+                                        @NonNull byte[] data)
+    {
+        File dir = getDir(context);
+
+        // Do not let a single image flush the whole cache
+        if (data.length > MAX_SIZE / 4 || !dir.isDirectory() && !dir.mkdirs())
+            return;
+
+        // Only the current url is kept for every widget
+        File file = getFile(context, appWidgetId, url);
+        for (File f : listFiles(context, getPrefix(appWidgetId)))
+            if (!f.equals(file))
+                f.delete();
+
+        File tmp = new File(dir, file.getName() + ".tmp");
+
+        try (FileOutputStream outputStream = new FileOutputStream(tmp)) {
+            outputStream.write(data);
+        } catch (IOException e) {
+            log("write failed: " + e);
+            tmp.delete();
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+
+        trim(context);
+    }
+
+    public static synchronized void delete(Context context, int appWidgetId)
+    {
+        for (File file : listFiles(context, getPrefix(appWidgetId)))
+            file.delete();
+    }
+
+    public static synchronized void move(Context context, int oldWidgetId, int newWidgetId)
+    {
+        String oldPrefix = getPrefix(oldWidgetId);
+        String newPrefix = getPrefix(newWidgetId);
+
+        for (File file : listFiles(context, oldPrefix))
+            file.renameTo(new File(
+                    file.getParentFile(),
+                    newPrefix + file.getName().substring(oldPrefix.length())
+            ));
+    }
+
+    private static void trim(Context context)
+    {
+        File[] files = listFiles(context, null);
+        long size = 0;
+
+        for (File file : files)
+            size += file.length();
+
+        if (size <= MAX_SIZE)
+            return;
+
+        // Evict least recently used first
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+        for (File file : files) {
+            if (size <= MAX_SIZE)
+                break;
+
+            long length = file.length();
+
+            if (file.delete()) {
+                size -= length;
+                log("evicted " + file.getName());
+            }
+        }
+    }
+}
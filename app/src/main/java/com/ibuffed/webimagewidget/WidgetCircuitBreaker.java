@@ -0,0 +1,109 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/*
+ * Per-host circuit breaker shared by all widgets. After FAILURE_THRESHOLD
+ * consecutive failures the host is left alone for a while, the pause doubles
+ * with every further failure. A server asking for a pause with Retry-After
+ * gets at least that.
+ */
+public class WidgetCircuitBreaker
+{
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_OPEN_TIME = 60000;  // 1 min
+    private static final long MAX_OPEN_TIME = 30 * 60000;  // 30 min
+
+    private static class Host
+    {
+        private int failures;
+        private long openUntil;
+    }
+
+    private static final Map<String, Host> hosts = new HashMap<>();
+    private static int rejectedCount;
+
+    private static void log(String host, String msg)
+    {
+        Log.i("WidgetCircuitBreaker", "host " + host + " " + msg);
+    }
+
+    /*
+     * Milliseconds until requests to host are allowed again, 0 if they are.
+     * Asked before every request, a blocked host counts as a rejected one.
+     */
+    public static synchronized long getBlockedTime(@Nullable String host)
+    {
+        Host h = host == null ? null : hosts.get(host);
+
+        if (h == null)
+            return 0;
+
+        long blockedTime = Math.max(0, h.openUntil - SystemClock.elapsedRealtime());
+        if (blockedTime > 0)
+            rejectedCount++;
+
+        return blockedTime;
+    }
+
+    /*
+     * Requests rejected since the last reset.
+     */
+    @VisibleForTesting
+    public static synchronized int getRejectedCount()
+    {
+        return rejectedCount;
+    }
+
+    public static synchronized void onSuccess(@Nullable String host)
+    {
+        if (host != null && hosts.remove(host) != null)
+            log(host, "recovered");
+    }
+
+    public static synchronized void onFailure(@Nullable String host, long retryAfter)
+    {
+        if (host == null)
+            return;
+
+        Host h = hosts.get(host);
+
+        if (h == null) {
+            h = new Host();
+            hosts.put(host, h);
+        }
+
+        long openTime = retryAfter;
+
+        if (++h.failures >= FAILURE_THRESHOLD) {
+            int shift = Math.min(h.failures - FAILURE_THRESHOLD, 5);
+            openTime = Math.max(openTime, Math.min(MIN_OPEN_TIME << shift, MAX_OPEN_TIME));
+        }
+
+        if (openTime > 0) {
+            h.openUntil = SystemClock.elapsedRealtime() + openTime;
+            log(host, "blocked for " + openTime / 1000 + " sec");
+        }
+    }
+
+    /*
+     * Unblock every host and forget their failures.
+     */
+    @VisibleForTesting
+    public static synchronized void reset()
+    {
+        hosts.clear();
+        rejectedCount = 0;
+    }
+}
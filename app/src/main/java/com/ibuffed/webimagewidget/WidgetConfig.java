@@ -0,0 +1,406 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.preference.PreferenceDataStore;
+
+import java.util.Map;
+
+
+/*
+ * Typed widget configuration. All widgets are loaded once into memory, reads
+ * never touch SharedPreferences and writes go through to the "widgets" file.
+ * It is also the data store of the widget settings screen, so keys passed by
+ * preferences are "<field>.<appWidgetId>".
+ */
+public class WidgetConfig extends PreferenceDataStore
+{
+    private static final String PREFS_NAME = "widgets";
+    private static final String[] STRING_KEYS = {"name", "url", "crop"};
+    private static final String[] INT_KEYS = {"interval", "maxinterval", "maxsize"};
+    private static final String[] BOOLEAN_KEYS = {
+            "configured",
+            "wifi",
+            "scale",
+            "aspect",
+            "progressive",
+            "memory",
+            "visible"
+    };
+
+    private static WidgetConfig config;
+
+    /*
+     * Configuration of a single widget, defaults for a new one.
+     */
+    static class Entry
+    {
+        boolean configured = false;
+        String name = "";
+        String url = "";
+        int interval = -1;
+        int maxInterval = -1;
+        boolean wifi = false;
+        boolean whileVisible = false;
+        boolean scaleImage = true;
+        boolean preserveAspectRatio = true;
+        int maxSize = WidgetOptions.DEFAULT_MAX_SIZE;
+        boolean progressive = false;
+        boolean memorySaving = false;
+        String crop = "";
+
+        @NonNull
+        Entry copy()
+        {
+            Entry entry = new Entry();
+            entry.configured = configured;
+            entry.name = name;
+            entry.url = url;
+            entry.interval = interval;
+            entry.maxInterval = maxInterval;
+            entry.wifi = wifi;
+            entry.whileVisible = whileVisible;
+            entry.scaleImage = scaleImage;
+            entry.preserveAspectRatio = preserveAspectRatio;
+            entry.maxSize = maxSize;
+            entry.progressive = progressive;
+            entry.memorySaving = memorySaving;
+            entry.crop = crop;
+            return entry;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final SparseArray<Entry> entries = new SparseArray<>();
+
+    private WidgetConfig(Context context)
+    {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        for (Map.Entry<String, ?> pref : prefs.getAll().entrySet())
+            set(pref.getKey(), pref.getValue());
+    }
+
+    @NonNull
+    static synchronized WidgetConfig getInstance(Context context)
+    {
+        if (config == null)
+            config = new WidgetConfig(context.getApplicationContext());
+
+        return config;
+    }
+
+    /*
+     * Drop the loaded configuration, the next getInstance reads it again.
+     */
+    @VisibleForTesting
+    static synchronized void reset()
+    {
+        config = null;
+        WidgetUtil.invalidateAppWidgetIds();
+    }
+
+    private static int getAppWidgetId(@NonNull String key)
+    {
+        try {
+            return Integer.parseInt(key.substring(key.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String getField(@NonNull String key)
+    {
+        int dot = key.lastIndexOf('.');
+        return dot < 0 ? key : key.substring(0, dot);
+    }
+
+    @NonNull
+    private Entry getEntry(int appWidgetId)
+    {
+        Entry entry = entries.get(appWidgetId);
+
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(appWidgetId, entry);
+        }
+
+        return entry;
+    }
+
+    /*
+     * Store a value in memory, returns false for unknown keys.
+     */
+    private boolean set(@NonNull String key, @Nullable Object value)
+    {
+        int appWidgetId = getAppWidgetId(key);
+
+        if (appWidgetId < 0 || value == null)
+            return false;
+
+        Entry entry = getEntry(appWidgetId);
+
+        switch (getField(key)) {
+            case "configured":
+                entry.configured = (Boolean) value;
+                return true;
+            case "name":
+                entry.name = (String) value;
+                return true;
+            case "url":
+                entry.url = (String) value;
+                return true;
+            case "interval":
+                entry.interval = (Integer) value;
+                return true;
+            case "maxinterval":
+                entry.maxInterval = (Integer) value;
+                return true;
+            case "wifi":
+                entry.wifi = (Boolean) value;
+                return true;
+            case "visible":
+                entry.whileVisible = (Boolean) value;
+                return true;
+            case "scale":
+                entry.scaleImage = (Boolean) value;
+                return true;
+            case "aspect":
+                entry.preserveAspectRatio = (Boolean) value;
+                return true;
+            case "maxsize":
+                entry.maxSize = (Integer) value;
+                return true;
+            case "progressive":
+                entry.progressive = (Boolean) value;
+                return true;
+            case "memory":
+                entry.memorySaving = (Boolean) value;
+                return true;
+            case "crop":
+                entry.crop = (String) value;
+                return true;
+        }
+
+        return false;
+    }
+
+    @Nullable
+    private Object get(@NonNull String key)
+    {
+        int appWidgetId = getAppWidgetId(key);
+
+        if (appWidgetId < 0)
+            return null;
+
+        Entry entry = entries.get(appWidgetId);
+        if (entry == null)
+            entry = new Entry();
+
+        switch (getField(key)) {
+            case "configured":
+                return entry.configured;
+            case "name":
+                return entry.name;
+            case "url":
+                return entry.url;
+            case "interval":
+                return entry.interval;
+            case "maxinterval":
+                return entry.maxInterval;
+            case "wifi":
+                return entry.wifi;
+            case "visible":
+                return entry.whileVisible;
+            case "scale":
+                return entry.scaleImage;
+            case "aspect":
+                return entry.preserveAspectRatio;
+            case "maxsize":
+                return entry.maxSize;
+            case "progressive":
+                return entry.progressive;
+            case "memory":
+                return entry.memorySaving;
+            case "crop":
+                return entry.crop;
+        }
+
+        return null;
+    }
+
+    private static void put(@NonNull SharedPreferences.Editor edit,
+                            @NonNull String key,
+                            @NonNull Object value)
+    {
+        if (value instanceof Boolean) {
+            edit.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            edit.putInt(key, (Integer) value);
+        } else {
+            edit.putString(key, value.toString());
+        }
+    }
+
+    /*
+     * Copy of the widget configuration, never null.
+     */
+    @NonNull
+    synchronized Entry get(int appWidgetId)
+    {
+        Entry entry = entries.get(appWidgetId);
+        return entry == null ? new Entry() : entry.copy();
+    }
+
+    synchronized boolean isConfigured(int appWidgetId)
+    {
+        Entry entry = entries.get(appWidgetId);
+        return entry != null && entry.configured;
+    }
+
+    synchronized void setConfigured(int appWidgetId)
+    {
+        getEntry(appWidgetId).configured = true;
+        prefs.edit().putBoolean("configured." + appWidgetId, true).apply();
+        WidgetUtil.invalidateAppWidgetIds();
+    }
+
+    public synchronized void delete(int appWidgetId)
+    {
+        SharedPreferences.Editor edit = prefs.edit();
+
+        for (String[] keys : new String[][] {STRING_KEYS, INT_KEYS, BOOLEAN_KEYS})
+            for (String key : keys)
+                edit.remove(key + "." + appWidgetId);
+
+        edit.apply();
+        entries.remove(appWidgetId);
+        WidgetUtil.invalidateAppWidgetIds();
+    }
+
+    /*
+     * Remap configuration of a restored widget.
+     */
+    public synchronized void move(int oldWidgetId, int newWidgetId)
+    {
+        Entry entry = entries.get(oldWidgetId);
+        SharedPreferences.Editor edit = prefs.edit();
+
+        for (String[] keys : new String[][] {STRING_KEYS, INT_KEYS, BOOLEAN_KEYS}) {
+            for (String key : keys) {
+                String oldKey = key + "." + oldWidgetId;
+
+                if (prefs.contains(oldKey)) {
+                    put(edit, key + "." + newWidgetId, get(oldKey));
+                    edit.remove(oldKey);
+                }
+            }
+        }
+
+        edit.apply();
+
+        entries.remove(oldWidgetId);
+        if (entry != null)
+            entries.put(newWidgetId, entry);
+        WidgetUtil.invalidateAppWidgetIds();
+    }
+
+    /*
+     * Move widget settings from the default preferences, where they used to
+     * be stored as strings and booleans, into this store.
+     */
+    public synchronized void migrate(Context context)
+    {
+        SharedPreferences legacy = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor legacyEdit = legacy.edit();
+        SharedPreferences.Editor edit = prefs.edit();
+        int count = 0;
+
+        for (Map.Entry<String, ?> pref : legacy.getAll().entrySet()) {
+            String key = pref.getKey();
+            String field = getField(key);
+            Object value = pref.getValue();
+
+            if (getAppWidgetId(key) < 0)
+                continue;
+
+            // Numbers were kept as strings for list preferences
+            for (String intKey : INT_KEYS) {
+                if (intKey.equals(field) && value instanceof String) {
+                    try {
+                        value = Integer.parseInt((String) value);
+                    } catch (NumberFormatException e) {
+                        value = null;
+                    }
+                }
+            }
+
+            if (set(key, value)) {
+                put(edit, key, value);
+                legacyEdit.remove(key);
+                count++;
+            }
+        }
+
+        edit.apply();
+        legacyEdit.apply();
+        WidgetUtil.invalidateAppWidgetIds();
+
+        Log.i("WidgetConfig", "migrated " + count + " widget settings");
+    }
+
+    @Override
+    public synchronized void putString(String key, @Nullable String value)
+    {
+        Object typed = value;
+
+        // List preferences hand numbers over as strings
+        for (String intKey : INT_KEYS) {
+            if (intKey.equals(getField(key)) && value != null) {
+                try {
+                    typed = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+            }
+        }
+
+        if (set(key, typed)) {
+            SharedPreferences.Editor edit = prefs.edit();
+            put(edit, key, typed);
+            edit.apply();
+        }
+    }
+
+    @Override
+    public synchronized void putBoolean(String key, boolean value)
+    {
+        if (set(key, value))
+            prefs.edit().putBoolean(key, value).apply();
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getString(String key, @Nullable String defValue)
+    {
+        Object value = get(key);
+        return value == null || value instanceof Boolean ? defValue : value.toString();
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue)
+    {
+        Object value = get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.ImageDecoder;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+public class WidgetDecoder
+{
+    private static final int PREVIEW_SAMPLE_SIZE = 8;
+
+    private final int layoutId;
+    private final int width;
+    private final int height;
+    private final boolean memorySaving;
+    private final Rect crop;
+
+    public WidgetDecoder(int layoutId,
+                         int width,
+                         int height,
+                         boolean memorySaving,
+                         @Nullable Rect crop)
+    {
+        this.layoutId = layoutId;
+        this.width = width;
+        this.height = height;
+        this.memorySaving = memorySaving;
+        this.crop = crop;
+    }
+
+    /*
+     * Crop region "left,top,right,bottom" in percent of the image size,
+     * null if empty or malformed.
+     */
+    @Nullable
+    static Rect parseCrop(@Nullable String crop)
+    {
+        if (crop == null || crop.trim().isEmpty())
+            return null;
+
+        String[] edges = crop.split(",");
+
+        if (edges.length != 4)
+            return null;
+
+        try {
+            Rect rect = new Rect(
+                    Integer.parseInt(edges[0].trim()),
+                    Integer.parseInt(edges[1].trim()),
+                    Integer.parseInt(edges[2].trim()),
+                    Integer.parseInt(edges[3].trim())
+            );
+
+            if (rect.left < 0 || rect.top < 0 || rect.right > 100 || rect.bottom > 100 ||
+                    rect.left >= rect.right || rect.top >= rect.bottom)
+                return null;
+
+            return rect;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Decoder bounded by the largest size the widget can be displayed at,
+     * width and height are 0 when the size is unknown.
+     */
+    @NonNull
+    static WidgetDecoder forWidget(Context context, @NonNull WidgetOptions widgetOptions)
+    {
+        Point size = WidgetUtil.getWidgetSize(context, widgetOptions.getAppWidgetId());
+
+        return new WidgetDecoder(
+                widgetOptions.getLayoutId(),
+                size.x,
+                size.y,
+                widgetOptions.getMemorySaving(),
+                parseCrop(widgetOptions.getCrop())
+        );
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /*
+     * Pixel format for the image type, JPEG has no alpha channel, so in
+     * memory saving mode it is decoded with 16 bits per pixel.
+     */
+    @NonNull
+    Bitmap.Config getConfig(@Nullable String mimeType)
+    {
+        if (memorySaving && "image/jpeg".equals(mimeType))
+            return Bitmap.Config.RGB_565;
+
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    /*
+     * Largest power of two subsampling that does not lose any detail
+     * visible at the widget size.
+     */
+    int getSampleSize(int imageWidth, int imageHeight)
+    {
+        // Unscaled image is shown pixel by pixel
+        if (layoutId == R.layout.widget_center || width <= 0 || height <= 0)
+            return 1;
+
+        float ratioX = (float) imageWidth / width;
+        float ratioY = (float) imageHeight / height;
+        float ratio = layoutId == R.layout.widget_fit_xy ?
+                Math.min(ratioX, ratioY) :
+                Math.max(ratioX, ratioY);
+
+        int sampleSize = 1;
+
+        while (sampleSize * 2 <= ratio)
+            sampleSize *= 2;
+
+        return sampleSize;
+    }
+
+    @Nullable
+    public Bitmap decode(@NonNull byte[] data)
+    {
+        return decode(data, 1);
+    }
+
+    /*
+     * Heavily subsampled decode, data may be incomplete (first bytes of
+     * a download), missing part of the image is left blank.
+     */
+    @Nullable
+    public Bitmap decodePreview(@NonNull byte[] data)
+    {
+        return decode(data, PREVIEW_SAMPLE_SIZE);
+    }
+
+    /*
+     * Crop region in pixels of an imageWidth x imageHeight image, null to
+     * decode the whole image.
+     */
+    @Nullable
+    Rect getRegion(int imageWidth, int imageHeight)
+    {
+        if (crop == null || crop.width() == 100 && crop.height() == 100)
+            return null;
+
+        Rect region = new Rect(
+                crop.left * imageWidth / 100,
+                crop.top * imageHeight / 100,
+                crop.right * imageWidth / 100,
+                crop.bottom * imageHeight / 100
+        );
+
+        // Keep at least one pixel of tiny images
+        region.right = Math.max(region.right, region.left + 1);
+        region.bottom = Math.max(region.bottom, region.top + 1);
+
+        return region;
+    }
+
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private static BitmapRegionDecoder newRegionDecoder(@NonNull byte[] data) throws IOException
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+            return BitmapRegionDecoder.newInstance(data, 0, data.length);
+
+        return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+    }
+
+    /*
+     * Decode the region only, so time and memory depend on the crop size
+     * rather than on the image size.
+     */
+    @Nullable
+    private static Bitmap decodeRegion(@NonNull byte[] data,
+                                       @NonNull Rect region,
+                                       @NonNull BitmapFactory.Options options)
+    {
+        BitmapRegionDecoder decoder;
+
+        try {
+            decoder = newRegionDecoder(data);
+        } catch (IOException e) {
+            decoder = null;
+        }
+
+        if (decoder != null) {
+            try {
+                return decoder.decodeRegion(region, options);
+            } finally {
+                decoder.recycle();
+            }
+        }
+
+        // Format without region decoding support (GIF etc), crop the full image
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        if (bitmap == null)
+            return null;
+
+        int sampleSize = options.inSampleSize;
+        Bitmap cropped = Bitmap.createBitmap(
+                bitmap,
+                Math.min(region.left / sampleSize, bitmap.getWidth() - 1),
+                Math.min(region.top / sampleSize, bitmap.getHeight() - 1),
+                Math.max(1, Math.min(region.width() / sampleSize,
+                        bitmap.getWidth() - region.left / sampleSize)),
+                Math.max(1, Math.min(region.height() / sampleSize,
+                        bitmap.getHeight() - region.top / sampleSize))
+        );
+
+        if (cropped != bitmap)
+            WidgetBitmapPool.put(bitmap);
+
+        return cropped;
+    }
+
+    @Nullable
+    private static Bitmap decode(@NonNull byte[] data,
+                                 @Nullable Rect region,
+                                 @NonNull BitmapFactory.Options options)
+    {
+        if (region == null)
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        return decodeRegion(data, region, options);
+    }
+
+    /*
+     * Platform decoder (API 28+), scales while decoding and handles HEIF
+     * (and AVIF on API 31+). Pixels are kept in mutable software memory, so
+     * the bitmap can go to the pool after it is pushed.
+     */
+    @RequiresApi(Build.VERSION_CODES.P)
+    @Nullable
+    private Bitmap decodeImage(@NonNull byte[] data, int extraSampleSize)
+    {
+        ImageDecoder.Source source = ImageDecoder.createSource(ByteBuffer.wrap(data));
+
+        try {
+            return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+                Size size = info.getSize();
+                int sampleSize =
+                        getSampleSize(size.getWidth(), size.getHeight()) * extraSampleSize;
+
+                decoder.setTargetSize(
+                        (size.getWidth() + sampleSize - 1) / sampleSize,
+                        (size.getHeight() + sampleSize - 1) / sampleSize
+                );
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                decoder.setMutableRequired(true);
+
+                if (getConfig(info.getMimeType()) == Bitmap.Config.RGB_565)
+                    decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+
+                // Incomplete data is expected for a preview
+                if (extraSampleSize > 1)
+                    decoder.setOnPartialImageListener(e -> true);
+            });
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private Bitmap decode(@NonNull byte[] data, int extraSampleSize)
+    {
+        boolean platform = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && crop == null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        // Read image size only
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return platform ? decodeImage(data, extraSampleSize) : null;
+
+        // Part of the image shown on the widget
+        Rect region = getRegion(options.outWidth, options.outHeight);
+        int regionWidth = region == null ? options.outWidth : region.width();
+        int regionHeight = region == null ? options.outHeight : region.height();
+
+        // Decode subsampled image
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(regionWidth, regionHeight) * extraSampleSize;
+
+        options.inPreferredConfig = getConfig(options.outMimeType);
+
+        // Reuse memory of a bitmap already pushed to a widget, the region
+        // decoder keeps the size of a reused bitmap, so crops allocate
+        options.inMutable = true;
+        if (region == null)
+            options.inBitmap = WidgetBitmapPool.get(
+                    (regionWidth + options.inSampleSize - 1) / options.inSampleSize,
+                    (regionHeight + options.inSampleSize - 1) / options.inSampleSize,
+                    options.inPreferredConfig
+            );
+
+        // Whole image goes to the platform decoder where available, unless
+        // there is pooled memory to reuse, which only BitmapFactory can do
+        if (platform && options.inBitmap == null)
+            return decodeImage(data, extraSampleSize);
+
+        try {
+            Bitmap bitmap = decode(data, region, options);
+
+            if (bitmap == null)
+                WidgetBitmapPool.put(options.inBitmap);
+
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // Pooled bitmap does not fit after all
+            options.inBitmap = null;
+            return decode(data, region, options);
+        }
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+
+/*
+ * Process-wide image downloader. Concurrent requests for the same url and
+ * validators share one download, and a successful download is reused by
+ * every widget asking for the same url within FRESHNESS_WINDOW.
+ */
+public class WidgetFetcher
+{
+    private static final long FRESHNESS_WINDOW = 30000;  // 30 sec
+    private static final long PARTIAL_DELAY = 1000;  // 1 sec
+    private static final int PARTIAL_MIN_SIZE = 16384;
+    private static final long MAX_RETRY_AFTER = 24 * 3600000;  // 24 hours
+
+    private static final Map<String, FutureTask<Response>> inFlight = new HashMap<>();
+    private static final Map<String, Response> recent = new HashMap<>();
+
+    /*
+     * Called once with the bytes received so far when a body takes
+     * longer than PARTIAL_DELAY to download.
+     */
+    public interface PartialListener
+    {
+        void onPartialData(@NonNull byte[] data);
+    }
+
+    public static class Response
+    {
+        private final int code;
+        private final byte[] data;
+        private final String etag;
+        private final String lastModified;
+        private final String message;
+        private final boolean retryable;
+        private final long retryAfter;
+        private final long time = SystemClock.elapsedRealtime();
+        private long connectTime = -1;
+        private long firstByteTime = -1;
+        private long downloadTime = -1;
+        private long freshness = -1;
+        private long traffic;
+        private String hash;
+
+        Response(int code, byte[] data, String etag, String lastModified, String message)
+        {
+            this(code, data, etag, lastModified, message, false, 0);
+        }
+
+        Response(int code,
+                 byte[] data,
+                 String etag,
+                 String lastModified,
+                 String message,
+                 boolean retryable,
+                 long retryAfter)
+        {
+            this.code = code;
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.message = message;
+            this.retryable = retryable;
+            this.retryAfter = retryAfter;
+        }
+
+        /*
+         * Same response for a caller that did not download it.
+         */
+        private Response(@NonNull Response response)
+        {
+            this(
+                    response.code,
+                    response.data,
+                    response.etag,
+                    response.lastModified,
+                    response.message,
+                    response.retryable,
+                    response.retryAfter
+            );
+            this.connectTime = response.connectTime;
+            this.firstByteTime = response.firstByteTime;
+            this.downloadTime = response.downloadTime;
+            this.freshness = response.freshness;
+            this.hash = response.hash;
+        }
+
+        private Response setTiming(@NonNull WidgetTransport.Connection con, long downloadTime)
+        {
+            this.connectTime = con.getConnectTime();
+            this.firstByteTime = con.getFirstByteTime();
+            this.downloadTime = downloadTime;
+            return this;
+        }
+
+        private Response setFreshness(long freshness)
+        {
+            this.freshness = freshness;
+            return this;
+        }
+
+        private Response setTraffic(long traffic)
+        {
+            this.traffic = traffic;
+            return this;
+        }
+
+        public boolean isNotModified()
+        {
+            return code == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        @Nullable
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        @Nullable
+        public synchronized String getHash()
+        {
+            if (hash == null && data != null)
+                hash = WidgetFetcher.getHash(data);
+
+            return hash;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
+
+        public String getLastModified()
+        {
+            return lastModified;
+        }
+
+        @Nullable
+        public String getMessage()
+        {
+            return message;
+        }
+
+        /*
+         * Temporary failure (timeout, connection problem, HTTP 5xx or 429).
+         */
+        public boolean isRetryable()
+        {
+            return retryable;
+        }
+
+        /*
+         * Milliseconds the server (or circuit breaker) asks to wait before
+         * the next attempt, 0 if not specified.
+         */
+        public long getRetryAfter()
+        {
+            return retryAfter;
+        }
+
+        /*
+         * Milliseconds spent connecting, waiting for the response headers and
+         * reading the body, -1 if the request did not get that far.
+         */
+        public long getConnectTime()
+        {
+            return connectTime;
+        }
+
+        public long getFirstByteTime()
+        {
+            return firstByteTime;
+        }
+
+        public long getDownloadTime()
+        {
+            return downloadTime;
+        }
+
+        /*
+         * Milliseconds the server declared the image fresh for
+         * (Cache-Control max-age or Expires), -1 if not declared.
+         */
+        public long getFreshness()
+        {
+            return freshness;
+        }
+
+        /*
+         * Bytes downloaded for this caller, 0 if the download was shared.
+         */
+        public long getTraffic()
+        {
+            return traffic;
+        }
+
+        private boolean isFresh(long now)
+        {
+            return data != null && now - time < FRESHNESS_WINDOW;
+        }
+
+        private boolean matches(@Nullable String etag, @Nullable String lastModified)
+        {
+            if (etag != null)
+                return etag.equals(this.etag);
+
+            return lastModified != null && lastModified.equals(this.lastModified);
+        }
+    }
+
+    private static WidgetTransport transport;
+
+    /*
+     * Cheap content fingerprint (length and CRC32) of a body.
+     */
+    @NonNull
+    public static String getHash(@NonNull byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return data.length + "-" + Long.toHexString(crc.getValue());
+    }
+
+    @NonNull
+    private static String getUserAgent(Context context)
+    {
+        StringBuilder ua = new StringBuilder("WebImageWidget/");
+
+        try {
+            PackageInfo packageInfo = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0);
+            ua.append(packageInfo.versionName);
+        } catch (PackageManager.NameNotFoundException e) {
+            ua.append("DEV");
+        }
+
+        return ua.append(" (Android/").append(Build.VERSION.RELEASE).append(")").toString();
+    }
+
+    @NonNull
+    private static synchronized WidgetTransport getTransport(Context context)
+    {
+        if (transport == null)
+            transport = new WidgetHttpTransport(getUserAgent(context));
+
+        return transport;
+    }
+
+    /*
+     * Replace the process-wide transport, e.g. to point it at a mock server.
+     */
+    @VisibleForTesting
+    public static synchronized void setTransport(@Nullable WidgetTransport transport)
+    {
+        WidgetFetcher.transport = transport;
+    }
+
+    /*
+     * Forget recent downloads, so the next fetch goes to the network.
+     */
+    @VisibleForTesting
+    public static synchronized void reset()
+    {
+        recent.clear();
+    }
+
+    /*
+     * Download url, at most maxSize bytes are accepted, etag and
+     * lastModified make the request conditional. Partial data and traffic
+     * are only reported when this call does the download itself.
+     */
+    @NonNull
+    @WorkerThread
+    public static Response fetch(Context context,
+                                 String url,
+                                 long maxSize,
+                                 @Nullable String etag,
+                                 @Nullable String lastModified,
+                                 @Nullable PartialListener listener)
+    {
+        String key = url + "\n" + maxSize + "\n" + etag + "\n" + lastModified;
+        String host = getHost(url);
+        FutureTask<Response> task;
+        boolean owner = false;
+
+        // Host keeps failing, do not even try
+        long blockedTime = WidgetCircuitBreaker.getBlockedTime(host);
+        if (blockedTime > 0)
+            return new Response(
+                    -1,
+                    null,
+                    null,
+                    null,
+                    "host unavailable, retry in " + (blockedTime + 999) / 1000 + " sec",
+                    true,
+                    blockedTime
+            );
+
+        synchronized (WidgetFetcher.class) {
+            long now = SystemClock.elapsedRealtime();
+
+            // Forget stale downloads
+            Iterator<Response> it = recent.values().iterator();
+            while (it.hasNext())
+                if (!it.next().isFresh(now))
+                    it.remove();
+
+            // Reuse recent download
+            Response response = recent.get(url);
+            if (response != null) {
+                if (response.getData().length > maxSize)
+                    return new Response(-1, null, null, null, getTooLargeMessage(maxSize));
+                if (response.matches(etag, lastModified))
+                    return new Response(
+                            HttpURLConnection.HTTP_NOT_MODIFIED,
+                            null,
+                            etag,
+                            lastModified,
+                            null
+                    );
+                return new Response(response);
+            }
+
+            // Join download in progress
+            task = inFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<>(() ->
+                        download(context, url, maxSize, etag, lastModified, listener)
+                );
+                inFlight.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner)
+            task.run();
+
+        Response response;
+
+        try {
+            response = task.get();
+        } catch (ExecutionException e) {
+            response = new Response(-1, null, null, null, String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            response = new Response(-1, null, null, null, e.toString());
+        }
+
+        if (owner) {
+            synchronized (WidgetFetcher.class) {
+                inFlight.remove(key);
+                if (response.getData() != null)
+                    recent.put(url, response);
+            }
+
+            if (response.isRetryable()) {
+                WidgetCircuitBreaker.onFailure(host, response.getRetryAfter());
+            } else if (response.code > 0) {
+                WidgetCircuitBreaker.onSuccess(host);
+            }
+        }
+
+        return owner ? response : new Response(response);
+    }
+
+    private static class TooLargeException extends IOException
+    {
+        private final long bytes;
+
+        TooLargeException(long bytes)
+        {
+            this.bytes = bytes;
+        }
+    }
+
+    /*
+     * Body buffer sized up front when the length is known, and handed
+     * over without a copy when it was filled exactly.
+     */
+    private static class BodyOutputStream extends ByteArrayOutputStream
+    {
+        BodyOutputStream(long contentLength)
+        {
+            super (contentLength > 0 ? (int) contentLength : 16384);
+        }
+
+        @NonNull
+        @Override
+        public synchronized byte[] toByteArray()
+        {
+            return count == buf.length ? buf : super.toByteArray();
+        }
+    }
+
+    @NonNull
+    private static String getTooLargeMessage(long maxSize)
+    {
+        return "too large (over " + maxSize / 1024 + " KiB)";
+    }
+
+    @NonNull
+    private static byte[] readFully(InputStream inputStream,
+                                    long contentLength,
+                                    long maxSize,
+                                    @Nullable PartialListener listener) throws IOException
+    {
+        BodyOutputStream outputStream = new BodyOutputStream(contentLength);
+        byte[] buffer = new byte[16384];
+        long start = SystemClock.elapsedRealtime();
+        int n;
+
+        while ((n = inputStream.read(buffer)) != -1) {
+            if (outputStream.size() + n > maxSize)
+                throw new TooLargeException(outputStream.size() + n);
+            outputStream.write(buffer, 0, n);
+
+            // Slow download, report what we have
+            if (listener != null && outputStream.size() >= PARTIAL_MIN_SIZE &&
+                    SystemClock.elapsedRealtime() - start >= PARTIAL_DELAY) {
+                listener.onPartialData(outputStream.toByteArray());
+                listener = null;
+            }
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    @Nullable
+    private static String getHost(@Nullable String url)
+    {
+        return url == null ? null : Uri.parse(url).getHost();
+    }
+
+    /*
+     * Image formats supported by the platform decoder, most compact first.
+     */
+    @NonNull
+    private static String getAccept()
+    {
+        StringBuilder accept = new StringBuilder();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+            accept.append("image/avif,");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+            accept.append("image/heif,");
+
+        return accept.append("image/webp,image/*;q=0.8,*/*;q=0.5").toString();
+    }
+
+    /*
+     * Milliseconds since epoch of an HTTP date, -1 if malformed.
+     */
+    private static long parseHttpDate(@Nullable String value)
+    {
+        if (value == null)
+            return -1;
+
+        SimpleDateFormat format =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+
+        try {
+            Date date = format.parse(value.trim());
+            return date != null ? date.getTime() : -1;
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * Retry-After is either delay in seconds or HTTP date.
+     */
+    private static long getRetryAfter(@NonNull WidgetTransport.Connection con)
+    {
+        String value = con.getHeaderField("Retry-After");
+        long retryAfter = 0;
+
+        if (value == null)
+            return 0;
+
+        try {
+            retryAfter = Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            long date = parseHttpDate(value);
+            if (date > 0)
+                retryAfter = date - System.currentTimeMillis();
+        }
+
+        return Math.max(0, Math.min(retryAfter, MAX_RETRY_AFTER));
+    }
+
+    /*
+     * Freshness lifetime of the response, Cache-Control takes precedence
+     * over Expires, which is relative to the server Date if there is one.
+     */
+    private static long getFreshness(@NonNull WidgetTransport.Connection con)
+    {
+        String cacheControl = con.getHeaderField("Cache-Control");
+
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+
+                if (directive.equals("no-cache") || directive.equals("no-store"))
+                    return 0;
+
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return Math.max(0, Long.parseLong(directive.substring(8)) * 1000);
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        long expires = parseHttpDate(con.getHeaderField("Expires"));
+
+        if (expires < 0)
+            return -1;
+
+        long date = parseHttpDate(con.getHeaderField("Date"));
+
+        return Math.max(0, expires - (date > 0 ? date : System.currentTimeMillis()));
+    }
+
+    private static long getContentLength(@NonNull WidgetTransport.Connection con)
+    {
+        try {
+            return Long.parseLong(con.getHeaderField("Content-Length"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @NonNull
+    private static Response download(Context context,
+                                     String url,
+                                     long maxSize,
+                                     @Nullable String etag,
+                                     @Nullable String lastModified,
+                                     @Nullable PartialListener listener)
+    {
+        String message;
+        boolean retryable = false;
+        long traffic = 0;
+        int rc = -1;
+
+        // Conditional request of a format the decoder can handle
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept", getAccept());
+        if (etag != null)
+            headers.put("If-None-Match", etag);
+        if (lastModified != null)
+            headers.put("If-Modified-Since", lastModified);
+
+        try (WidgetTransport.Connection con = getTransport(context).open(url, headers)) {
+            rc = con.getResponseCode();
+
+            if (rc == HttpURLConnection.HTTP_NOT_MODIFIED)
+                return new Response(rc, null, etag, lastModified, null)
+                        .setTiming(con, 0)
+                        .setFreshness(getFreshness(con));
+
+            // Server errors and throttling are temporary
+            if (rc >= 500 || rc == 429)
+                return new Response(
+                        rc,
+                        null,
+                        null,
+                        null,
+                        "http response: " + rc,
+                        true,
+                        getRetryAfter(con)
+                ).setTiming(con, -1);
+
+            InputStream inputStream = con.getInputStream();
+
+            // Refuse oversized body before reading it
+            long contentLength = getContentLength(con);
+            if (contentLength > maxSize)
+                return new Response(rc, null, null, null, getTooLargeMessage(maxSize));
+
+            long start = SystemClock.elapsedRealtime();
+            byte[] data = readFully(inputStream, contentLength, maxSize, listener);
+            long downloadTime = SystemClock.elapsedRealtime() - start;
+
+            return new Response(
+                    rc,
+                    data,
+                    con.getHeaderField("ETag"),
+                    con.getHeaderField("Last-Modified"),
+                    null
+            ).setTiming(con, downloadTime)
+                    .setFreshness(getFreshness(con))
+                    .setTraffic(data.length);
+        } catch (TooLargeException e) {
+            traffic = e.bytes;
+            message = getTooLargeMessage(maxSize);
+        } catch (MalformedURLException e) {
+            message = "malformed url";
+        } catch (UnknownHostException e) {
+            message = "unknown host";
+            retryable = true;
+        } catch (SocketTimeoutException e) {
+            message = "connect/read timeout";
+            retryable = true;
+        } catch (ConnectException e) {
+            message = "unable to connect";
+            retryable = true;
+        } catch (FileNotFoundException e) {
+            if (rc == 404) {
+                message = "file not found";
+            } else {
+                message = "http response: " + rc;
+            }
+        } catch (Exception e) {
+            message = e.toString();
+        }
+
+        return new Response(rc, null, null, null, message, retryable, 0).setTraffic(traffic);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+
+/*
+ * Transport on top of platform HttpURLConnection. It keeps a process-wide
+ * keep-alive pool with TLS session reuse and transparent gzip, as long as
+ * every response body is drained and closed instead of disconnecting.
+ */
+public class WidgetHttpTransport implements WidgetTransport
+{
+    private static final int CONNECT_TIMEOUT = 10000;  // 10 sec
+    private static final int READ_TIMEOUT = 30000;  // 30 sec
+    private static final int DRAIN_LIMIT = 65536;
+
+    private final String userAgent;
+
+    WidgetHttpTransport(String userAgent)
+    {
+        this.userAgent = userAgent;
+    }
+
+    private static class HttpConnection implements Connection
+    {
+        private final HttpURLConnection con;
+        private InputStream inputStream;
+        private long connectTime;
+        private long firstByteTime;
+
+        HttpConnection(HttpURLConnection con)
+        {
+            this.con = con;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException
+        {
+            return con.getResponseCode();
+        }
+
+        @Override
+        public long getConnectTime()
+        {
+            return connectTime;
+        }
+
+        @Override
+        public long getFirstByteTime()
+        {
+            return firstByteTime;
+        }
+
+        @Nullable
+        @Override
+        public String getHeaderField(@NonNull String name)
+        {
+            return con.getHeaderField(name);
+        }
+
+        @NonNull
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return inputStream = con.getInputStream();
+        }
+
+        @Override
+        public void close()
+        {
+            InputStream stream = inputStream != null ? inputStream : con.getErrorStream();
+
+            if (stream == null)
+                return;
+
+            // Drain short leftovers so the connection goes back to the pool,
+            // give up on long ones
+            try {
+                byte[] buffer = new byte[8192];
+                int drained = 0;
+                int n;
+
+                while (drained < DRAIN_LIMIT && (n = stream.read(buffer)) != -1)
+                    drained += n;
+
+                stream.close();
+
+                if (drained >= DRAIN_LIMIT)
+                    con.disconnect();
+            } catch (IOException e) {
+                con.disconnect();
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public Connection open(@NonNull String url, @NonNull Map<String, String> headers)
+            throws IOException
+    {
+        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        con.setRequestProperty("User-Agent", userAgent);
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(READ_TIMEOUT);
+
+        for (Map.Entry<String, String> header : headers.entrySet())
+            con.setRequestProperty(header.getKey(), header.getValue());
+
+        HttpConnection connection = new HttpConnection(con);
+        long start = SystemClock.elapsedRealtime();
+
+        try {
+            con.connect();
+            connection.connectTime = SystemClock.elapsedRealtime() - start;
+            connection.getResponseCode();
+            connection.firstByteTime = SystemClock.elapsedRealtime() - start;
+        } catch (IOException e) {
+            con.disconnect();
+            throw e;
+        }
+
+        return connection;
+    }
+}
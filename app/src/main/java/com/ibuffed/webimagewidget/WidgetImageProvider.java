@@ -0,0 +1,272 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+
+/*
+ * Read-only provider of the images shown on the widgets. The widget update
+ * carries a content uri instead of the pixels, and the launcher decodes the
+ * file itself. The uri has a version segment, so every update is a new uri
+ * and the launcher does not keep showing the old image. Any widget host
+ * has to be able to read it, so the provider is exported, and the version
+ * is a random token that only the update carries: a uri that cannot be
+ * guessed is the permission to read it.
+ */
+public class WidgetImageProvider extends ContentProvider
+{
+    private static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".images";
+    private static final String IMAGE_DIR = "widgets";
+    private static final Pattern FILE_NAME = Pattern.compile("[0-9a-f]{32}\\.(jpg|png|webp)");
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // Publishing is serialized per widget, only while files are swapped
+    private static final Object[] locks = new Object[16];
+
+    static {
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    @NonNull
+    private static Object getLock(int appWidgetId)
+    {
+        return locks[(appWidgetId & Integer.MAX_VALUE) % locks.length];
+    }
+
+    @NonNull
+    private static File getDir(Context context)
+    {
+        return new File(context.getNoBackupFilesDir(), IMAGE_DIR);
+    }
+
+    @NonNull
+    private static String getPrefix(int appWidgetId, int variant)
+    {
+        return appWidgetId + "_" + variant + "_";
+    }
+
+    @NonNull
+    private static File getFile(Context context, int appWidgetId, int variant, String name)
+    {
+        return new File(getDir(context), getPrefix(appWidgetId, variant) + name);
+    }
+
+    @NonNull
+    private static String createToken()
+    {
+        byte[] bytes = new byte[16];
+        StringBuilder token = new StringBuilder();
+
+        random.nextBytes(bytes);
+        for (byte b : bytes)
+            token.append(String.format(Locale.US, "%02x", b & 0xff));
+
+        return token.toString();
+    }
+
+    /*
+     * Opaque images are written as JPEG, which is small and quick to encode,
+     * images with transparency as lossless WebP at the lowest effort, or as
+     * PNG before Android 11.
+     */
+    @NonNull
+    private static Bitmap.CompressFormat getFormat(@NonNull Bitmap bitmap)
+    {
+        if (!bitmap.hasAlpha())
+            return Bitmap.CompressFormat.JPEG;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+            return Bitmap.CompressFormat.WEBP_LOSSLESS;
+
+        return Bitmap.CompressFormat.PNG;
+    }
+
+    @NonNull
+    private static String getExtension(@NonNull Bitmap.CompressFormat format)
+    {
+        if (format == Bitmap.CompressFormat.JPEG)
+            return "jpg";
+
+        return format == Bitmap.CompressFormat.PNG ? "png" : "webp";
+    }
+
+    /*
+     * Write bitmap for the widget, returns the uri to show it by,
+     * null if the image could not be written. A widget has one variant
+     * per size it is laid out at.
+     */
+    @Nullable
+    public static Uri publish(Context context,
+                              int appWidgetId,
+                              int variant,
+                              @NonNull Bitmap bitmap)
+    {
+        Bitmap.CompressFormat format = getFormat(bitmap);
+        int quality = format == Bitmap.CompressFormat.JPEG ? 95 : 0;
+        String name = createToken() + "." + getExtension(format);
+        File file = getFile(context, appWidgetId, variant, name);
+        File dir = file.getParentFile();
+        File tmp = new File(dir, name + ".tmp");
+
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            return null;
+
+        // Show up complete, the launcher may open it as soon as it is there,
+        // the temporary name is unique to this publish, so encoding needs no
+        // lock and cleaning up after another publish does not touch it
+        try (FileOutputStream outputStream = new FileOutputStream(tmp)) {
+            if (!bitmap.compress(format, quality, outputStream))
+                throw new IOException("unable to encode image");
+        } catch (IOException e) {
+            Log.e("WidgetImageProvider", "widget #" + appWidgetId + " " + e);
+            tmp.delete();
+            return null;
+        }
+
+        // Previous versions are no longer readable, only the new one is
+        synchronized (getLock(appWidgetId)) {
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return null;
+            }
+
+            delete(context, getPrefix(appWidgetId, variant), file);
+        }
+
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .appendPath(String.valueOf(appWidgetId))
+                .appendPath(String.valueOf(variant))
+                .appendPath(name)
+                .build();
+    }
+
+    public static void unpublish(Context context, int appWidgetId)
+    {
+        synchronized (getLock(appWidgetId)) {
+            delete(context, appWidgetId + "_", null);
+        }
+    }
+
+    /*
+     * Delete the images starting with prefix, except keep.
+     */
+    private static void delete(Context context, String prefix, @Nullable File keep)
+    {
+        File[] files = getDir(context).listFiles();
+
+        if (files == null)
+            return;
+
+        for (File file : files)
+            if (file.getName().startsWith(prefix) && !file.equals(keep))
+                file.delete();
+    }
+
+    @Override
+    public boolean onCreate()
+    {
+        return true;
+    }
+
+    /*
+     * content://<authority>/<appWidgetId>/<variant>/<token>.<extension>
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException
+    {
+        Context context = getContext();
+        List<String> segments = uri.getPathSegments();
+
+        if (context == null || segments.size() != 3 || !"r".equals(mode) ||
+                !FILE_NAME.matcher(segments.get(2)).matches())
+            throw new FileNotFoundException(uri.toString());
+
+        int appWidgetId, variant;
+
+        try {
+            appWidgetId = Integer.parseInt(segments.get(0));
+            variant = Integer.parseInt(segments.get(1));
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException(uri.toString());
+        }
+
+        return ParcelFileDescriptor.open(
+                getFile(context, appWidgetId, variant, segments.get(2)),
+                ParcelFileDescriptor.MODE_READ_ONLY
+        );
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri)
+    {
+        String name = uri.getLastPathSegment();
+        String extension = name == null ? "" : name.substring(name.lastIndexOf('.') + 1);
+
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri,
+                        @Nullable String[] projection,
+                        @Nullable String selection,
+                        @Nullable String[] selectionArgs,
+                        @Nullable String sortOrder)
+    {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values)
+    {
+        throw new UnsupportedOperationException("read-only");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri,
+                      @Nullable String selection,
+                      @Nullable String[] selectionArgs)
+    {
+        throw new UnsupportedOperationException("read-only");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri,
+                      @Nullable ContentValues values,
+                      @Nullable String selection,
+                      @Nullable String[] selectionArgs)
+    {
+        throw new UnsupportedOperationException("read-only");
+    }
+}
@@ -5,9 +5,7 @@ package com.ibuffed.webimagewidget;
 
 import android.appwidget.AppWidgetManager;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.view.View;
 import android.widget.TextView;
 
@@ -49,7 +47,7 @@ public class WidgetList extends PreferenceFragmentCompat
 
     @NonNull
     private Preference getWidgetPreference(Context context,
-                                           @NonNull SharedPreferences sp,
+                                           @NonNull WidgetConfig config,
                                            int appWidgetId)
     {
         Preference widget = new Preference(context)
@@ -77,11 +75,11 @@ public class WidgetList extends PreferenceFragmentCompat
         widget.setIcon(R.drawable.ic_widgets_24dp);
         widget.setTitle(WidgetUtil.getDisplayName(
                 context,
-                sp.getString("name." + appWidgetId, ""),
+                config.get(appWidgetId).name,
                 appWidgetId
         ));
         widget.setSummaryProvider(preference -> WidgetUtil.getDisplayURL(
-                context, sp.getString("url." + appWidgetId, "")
+                context, config.get(appWidgetId).url
         ));
         widget.setOnPreferenceClickListener(preference -> {
             WidgetPreference fragment = new WidgetPreference();
@@ -114,12 +112,12 @@ public class WidgetList extends PreferenceFragmentCompat
         // Create new screen
         PreferenceScreen screen = getPreferenceManager().createPreferenceScreen(context);
 
-        // Get shared preferences
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        // Get widget configuration
+        WidgetConfig config = WidgetConfig.getInstance(context);
 
         // Add widgets
         for (int appWidgetId : WidgetUtil.getAppWidgetIds(context))
-            screen.addPreference(getWidgetPreference(context, sp, appWidgetId));
+            screen.addPreference(getWidgetPreference(context, config, appWidgetId));
 
         // Set screen
         setPreferenceScreen(screen);
@@ -135,7 +133,7 @@ public class WidgetList extends PreferenceFragmentCompat
         assert activity != null;
 
         // Update widget titles
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        WidgetConfig config = WidgetConfig.getInstance(context);
         PreferenceScreen screen = getPreferenceScreen();
         for (int i = 0; i < screen.getPreferenceCount(); i++) {
             Preference widget = screen.getPreference(i);
@@ -144,7 +142,7 @@ public class WidgetList extends PreferenceFragmentCompat
             widget.setTitle(
                     WidgetUtil.getDisplayName(
                             context,
-                            sp.getString(widgetKey, ""),
+                            config.get(appWidgetId).name,
                             appWidgetId
                     )
             );
@@ -3,36 +3,85 @@
  */
 package com.ibuffed.webimagewidget;
 
+import android.appwidget.AppWidgetManager;
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 
-import java.util.Objects;
+import androidx.annotation.NonNull;
+import androidx.work.Data;
 
 
 public class WidgetOptions
 {
+    public static final int DEFAULT_MAX_SIZE = 10;  // MiB
+    private static final int MAX_MAX_SIZE = 10;  // MiB
+
     private final int appWidgetId;
     private String url;
     private int interval;
+    private int maxInterval;
     private boolean wifi;
+    private boolean whileVisible;
     private boolean scaleImage;
     private boolean preserveAspectRatio;
+    private int maxSize;
+    private boolean progressive;
+    private boolean memorySaving;
+    private String crop;
 
     WidgetOptions(Context context, int appWidgetId)
     {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        url = sp.getString("url." + appWidgetId, "");
-        interval = Integer.parseInt(
-                Objects.requireNonNull(sp.getString("interval." + appWidgetId, "-1"))
-        );
-        scaleImage = sp.getBoolean("scale." + appWidgetId, true);
-        preserveAspectRatio = sp.getBoolean("aspect." + appWidgetId, true);
-        wifi = sp.getBoolean("wifi." + appWidgetId, false);
+        WidgetConfig.Entry entry = WidgetConfig.getInstance(context).get(appWidgetId);
+
+        url = entry.url;
+        interval = entry.interval;
+        maxInterval = entry.maxInterval;
+        scaleImage = entry.scaleImage;
+        preserveAspectRatio = entry.preserveAspectRatio;
+        wifi = entry.wifi;
+        whileVisible = entry.whileVisible;
+        maxSize = entry.maxSize;
+        progressive = entry.progressive;
+        memorySaving = entry.memorySaving;
+        crop = entry.crop;
         this.appWidgetId = appWidgetId;
     }
 
+    /*
+     * Options passed to a worker: saved preferences overridden by the values
+     * the worker was enqueued with (preference may not be saved yet).
+     */
+    WidgetOptions(Context context, @NonNull Data data)
+    {
+        this(context, data.getInt(
+                AppWidgetManager.EXTRA_APPWIDGET_ID,
+                AppWidgetManager.INVALID_APPWIDGET_ID
+        ));
+
+        if (data.hasKeyWithValueOfType(WidgetUpdate.EXTRA_APPWIDGET_URL, String.class))
+            url = data.getString(WidgetUpdate.EXTRA_APPWIDGET_URL);
+        scaleImage = data.getBoolean(WidgetUpdate.EXTRA_APPWIDGET_SCALE, scaleImage);
+        preserveAspectRatio = data.getBoolean(WidgetUpdate.EXTRA_APPWIDGET_ASPECT, preserveAspectRatio);
+        maxSize = data.getInt(WidgetUpdate.EXTRA_APPWIDGET_MAX_SIZE, maxSize);
+        progressive = data.getBoolean(WidgetUpdate.EXTRA_APPWIDGET_PROGRESSIVE, progressive);
+        memorySaving = data.getBoolean(WidgetUpdate.EXTRA_APPWIDGET_MEMORY_SAVING, memorySaving);
+        if (data.hasKeyWithValueOfType(WidgetUpdate.EXTRA_APPWIDGET_CROP, String.class))
+            crop = data.getString(WidgetUpdate.EXTRA_APPWIDGET_CROP);
+    }
+
+    @NonNull
+    public Data.Builder toData()
+    {
+        return new Data.Builder()
+                .putInt(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId)
+                .putString(WidgetUpdate.EXTRA_APPWIDGET_URL, url)
+                .putBoolean(WidgetUpdate.EXTRA_APPWIDGET_SCALE, scaleImage)
+                .putBoolean(WidgetUpdate.EXTRA_APPWIDGET_ASPECT, preserveAspectRatio)
+                .putInt(WidgetUpdate.EXTRA_APPWIDGET_MAX_SIZE, maxSize)
+                .putBoolean(WidgetUpdate.EXTRA_APPWIDGET_PROGRESSIVE, progressive)
+                .putBoolean(WidgetUpdate.EXTRA_APPWIDGET_MEMORY_SAVING, memorySaving)
+                .putString(WidgetUpdate.EXTRA_APPWIDGET_CROP, crop);
+    }
+
     public int getLayoutId()
     {
         if (scaleImage) {
@@ -73,6 +122,28 @@ public class WidgetOptions
         return this;
     }
 
+    /*
+     * Longest adaptive refresh interval in minutes, -1 for fixed interval.
+     */
+    public int getMaxInterval()
+    {
+        return maxInterval;
+    }
+
+    public WidgetOptions setMaxInterval(int maxInterval)
+    {
+        this.maxInterval = maxInterval;
+        return this;
+    }
+
+    /*
+     * Adaptive refresh applies to scheduled widgets only.
+     */
+    public boolean isAdaptive()
+    {
+        return interval > 0 && maxInterval > interval;
+    }
+
     public boolean getWifi()
     {
         return wifi;
@@ -84,6 +155,21 @@ public class WidgetOptions
         return this;
     }
 
+    /*
+     * Scheduled refresh only while the screen is on, missed ones are made up
+     * for when the device is unlocked.
+     */
+    public boolean getWhileVisible()
+    {
+        return whileVisible;
+    }
+
+    public WidgetOptions setWhileVisible(boolean whileVisible)
+    {
+        this.whileVisible = whileVisible;
+        return this;
+    }
+
     public WidgetOptions setScaleImage(boolean scaleImage)
     {
         this.scaleImage = scaleImage;
@@ -95,4 +181,58 @@ public class WidgetOptions
         this.preserveAspectRatio = preserveAspectRatio;
         return this;
     }
+
+    /*
+     * Download size limit in bytes. The body is held in memory next to the
+     * decoded bitmap, so larger limits set by older versions are capped, and
+     * so is the limit on a small heap.
+     */
+    public long getMaxSize()
+    {
+        long heapLimit = Runtime.getRuntime().maxMemory() / 8;
+
+        return Math.min(Math.min(maxSize, MAX_MAX_SIZE) * 1024L * 1024L, heapLimit);
+    }
+
+    public WidgetOptions setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public boolean getProgressive()
+    {
+        return progressive;
+    }
+
+    public WidgetOptions setProgressive(boolean progressive)
+    {
+        this.progressive = progressive;
+        return this;
+    }
+
+    public boolean getMemorySaving()
+    {
+        return memorySaving;
+    }
+
+    public WidgetOptions setMemorySaving(boolean memorySaving)
+    {
+        this.memorySaving = memorySaving;
+        return this;
+    }
+
+    /*
+     * Crop region "left,top,right,bottom" in percent, empty for the whole image.
+     */
+    public String getCrop()
+    {
+        return crop;
+    }
+
+    public WidgetOptions setCrop(String crop)
+    {
+        this.crop = crop;
+        return this;
+    }
 }
@@ -7,7 +7,6 @@ import android.app.Activity;
 import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.text.InputType;
 import android.view.View;
@@ -15,12 +14,12 @@ import android.widget.Button;
 import android.widget.LinearLayout;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.preference.EditTextPreference;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
-import androidx.preference.PreferenceManager;
 import androidx.preference.PreferenceScreen;
 import androidx.preference.SwitchPreference;
 
@@ -45,13 +44,14 @@ public class WidgetPreference
         assert context != null;
         assert arguments != null;
 
+        // Widget settings are kept in the typed configuration store
+        WidgetConfig config = WidgetConfig.getInstance(context);
+        getPreferenceManager().setPreferenceDataStore(config);
+
         // Create screen
         PreferenceScreen screen = getPreferenceManager().createPreferenceScreen(context);
         setPreferenceScreen(screen);
 
-        // Get preferences
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
         // Get appWidgetId and initial status from arguments
         appWidgetId = arguments.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID);
         initial = arguments.getBoolean(INITIAL, false);
@@ -71,7 +71,7 @@ public class WidgetPreference
         name.setOnPreferenceChangeListener(this);
         name.setSummaryProvider(preference -> WidgetUtil.getDisplayName(
                 context,
-                sp.getString(preference.getKey(), ""),
+                config.getString(preference.getKey(), ""),
                 appWidgetId
         ));
         screen.addPreference(name);
@@ -91,7 +91,7 @@ public class WidgetPreference
         url.setOnPreferenceChangeListener(this);
         url.setSummaryProvider(preference -> WidgetUtil.getDisplayURL(
                 context,
-                sp.getString(preference.getKey(), "")
+                config.getString(preference.getKey(), "")
         ));
         screen.addPreference(url);
 
@@ -108,12 +108,31 @@ public class WidgetPreference
         interval.setSummaryProvider(preference -> {
             ListPreference listPreference = (ListPreference) preference;
             int index = listPreference.findIndexOfValue(
-                    sp.getString(preference.getKey(), "-1")
+                    config.getString(preference.getKey(), "-1")
             );
             return index >= 0 ? listPreference.getEntries()[index] : null;
         });
         screen.addPreference(interval);
 
+        // Add "Adaptive refresh" preference
+        ListPreference adaptive = new ListPreference(context);
+        adaptive.setKey("maxinterval." + appWidgetId);
+        adaptive.setTitle(R.string.settings_title_adaptive);
+        adaptive.setDefaultValue("-1");
+        adaptive.setDialogTitle(R.string.settings_title_adaptive);
+        adaptive.setEntries(R.array.settings_adaptive_titles);
+        adaptive.setEntryValues(R.array.settings_adaptive_values);
+        adaptive.setIcon(R.drawable.ic_adaptive_24dp);
+        adaptive.setOnPreferenceChangeListener(this);
+        adaptive.setSummaryProvider(preference -> {
+            ListPreference listPreference = (ListPreference) preference;
+            int index = listPreference.findIndexOfValue(
+                    config.getString(preference.getKey(), "-1")
+            );
+            return index >= 0 ? listPreference.getEntries()[index] : null;
+        });
+        screen.addPreference(adaptive);
+
         // Add "Update over WiFi only" preference
         SwitchPreference wifi = new SwitchPreference(context);
         wifi.setKey("wifi." + appWidgetId);
@@ -123,6 +142,16 @@ public class WidgetPreference
         wifi.setOnPreferenceChangeListener(this);
         screen.addPreference(wifi);
 
+        // Add "Only while screen is on" preference
+        SwitchPreference visible = new SwitchPreference(context);
+        visible.setKey("visible." + appWidgetId);
+        visible.setTitle(R.string.settings_title_visible);
+        visible.setSummary(R.string.settings_summary_visible);
+        visible.setDefaultValue(false);
+        visible.setIcon(R.drawable.ic_visible_24dp);
+        visible.setOnPreferenceChangeListener(this);
+        screen.addPreference(visible);
+
         // Add "Scale image" preference
         SwitchPreference scale = new SwitchPreference(context);
         scale.setKey("scale." + appWidgetId);
@@ -143,6 +172,138 @@ public class WidgetPreference
 
         // Add scale->aspect dependency
         aspect.setDependency(scale.getKey());
+
+        // Add "Crop region" preference
+        EditTextPreference crop = new EditTextPreference(context);
+        crop.setKey("crop." + appWidgetId);
+        crop.setTitle(R.string.settings_title_crop);
+        crop.setDialogTitle(R.string.settings_title_crop);
+        crop.setDialogMessage(R.string.settings_title_crop_description);
+        crop.setOnBindEditTextListener(editText -> {
+            editText.setInputType(InputType.TYPE_CLASS_TEXT);
+            editText.setMaxLines(1);
+            editText.setSingleLine(true);
+        });
+        crop.setIcon(R.drawable.ic_crop_24dp);
+        crop.setOnPreferenceChangeListener(this);
+        crop.setSummaryProvider(preference -> {
+            String value = config.getString(preference.getKey(), "");
+            return WidgetDecoder.parseCrop(value) == null ?
+                    context.getString(R.string.settings_summary_crop_none) :
+                    value;
+        });
+        screen.addPreference(crop);
+
+        // Add "Progressive loading" preference
+        SwitchPreference progressive = new SwitchPreference(context);
+        progressive.setKey("progressive." + appWidgetId);
+        progressive.setTitle(R.string.settings_title_progressive);
+        progressive.setSummary(R.string.settings_summary_progressive);
+        progressive.setDefaultValue(false);
+        progressive.setIcon(R.drawable.ic_progressive_24dp);
+        progressive.setOnPreferenceChangeListener(this);
+        screen.addPreference(progressive);
+
+        // Add "Memory saving" preference
+        SwitchPreference memory = new SwitchPreference(context);
+        memory.setKey("memory." + appWidgetId);
+        memory.setTitle(R.string.settings_title_memory);
+        memory.setSummary(R.string.settings_summary_memory);
+        memory.setDefaultValue(false);
+        memory.setIcon(R.drawable.ic_memory_24dp);
+        memory.setOnPreferenceChangeListener(this);
+        screen.addPreference(memory);
+
+        // Add "Maximum download size" preference
+        ListPreference maxSize = new ListPreference(context);
+        maxSize.setKey("maxsize." + appWidgetId);
+        maxSize.setTitle(R.string.settings_title_max_size);
+        maxSize.setDefaultValue(String.valueOf(WidgetOptions.DEFAULT_MAX_SIZE));
+        maxSize.setDialogTitle(R.string.settings_title_max_size);
+        maxSize.setEntries(R.array.settings_max_size_titles);
+        maxSize.setEntryValues(R.array.settings_max_size_values);
+        maxSize.setIcon(R.drawable.ic_download_24dp);
+        maxSize.setOnPreferenceChangeListener(this);
+        maxSize.setSummaryProvider(preference -> {
+            ListPreference listPreference = (ListPreference) preference;
+            int index = listPreference.findIndexOfValue(config.getString(
+                    preference.getKey(),
+                    String.valueOf(WidgetOptions.DEFAULT_MAX_SIZE)
+            ));
+            return context.getString(
+                    R.string.settings_summary_traffic,
+                    index >= 0 ? listPreference.getEntries()[index] : "",
+                    WidgetState.getTraffic(context, appWidgetId) / 1024
+            );
+        });
+        screen.addPreference(maxSize);
+
+        // Add "Update statistics" preference
+        Preference stats = new Preference(context);
+        stats.setKey("stats." + appWidgetId);
+        stats.setTitle(R.string.settings_title_stats);
+        stats.setIcon(R.drawable.ic_timer_24dp);
+        stats.setPersistent(false);
+        stats.setSummaryProvider(preference -> {
+            WidgetStats.Summary summary = WidgetStats.getSummary(context, appWidgetId);
+            long p50 = summary.getPercentile(WidgetStats.TOTAL, 50);
+            long p95 = summary.getPercentile(WidgetStats.TOTAL, 95);
+
+            if (summary.getCount() == 0)
+                return context.getString(R.string.settings_summary_stats_empty);
+
+            return context.getString(
+                    R.string.settings_summary_stats,
+                    summary.getCount(),
+                    summary.getSuccessRate(),
+                    formatStat(context, WidgetStats.TOTAL, p50),
+                    formatStat(context, WidgetStats.TOTAL, p95)
+            );
+        });
+        stats.setOnPreferenceClickListener(preference -> {
+            showStats(context);
+            return true;
+        });
+        screen.addPreference(stats);
+    }
+
+    @NonNull
+    private static String formatStat(Context context, int index, long value)
+    {
+        if (value < 0)
+            return context.getString(R.string.settings_stats_none);
+
+        if (index == WidgetStats.BYTES)
+            return context.getString(R.string.settings_stats_kib, value / 1024);
+
+        return context.getString(R.string.settings_stats_ms, value);
+    }
+
+    /*
+     * Show p50/p95 of every update phase.
+     */
+    private void showStats(Context context)
+    {
+        WidgetStats.Summary summary = WidgetStats.getSummary(context, appWidgetId);
+        String[] phases = context.getResources().getStringArray(R.array.settings_stats_phases);
+        StringBuilder message = new StringBuilder();
+
+        for (int i = 0; i < phases.length; i++) {
+            if (i > 0)
+                message.append('\n');
+            message.append(context.getString(
+                    R.string.settings_stats_line,
+                    phases[i],
+                    formatStat(context, i, summary.getPercentile(i, 50)),
+                    formatStat(context, i, summary.getPercentile(i, 95))
+            ));
+        }
+
+        new AlertDialog.Builder(context)
+                .setTitle(R.string.settings_title_stats)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
     }
 
     @Override
@@ -172,11 +333,7 @@ public class WidgetPreference
                 context.getResources().getColor(R.color.colorPrimaryDark)
         );
         button.setOnClickListener(v -> {
-            PreferenceManager
-                    .getDefaultSharedPreferences(context)
-                    .edit()
-                    .putBoolean("configured." + appWidgetId, true)
-                    .apply();
+            WidgetConfig.getInstance(context).setConfigured(appWidgetId);
 
             activity.setResult(Activity.RESULT_OK, new Intent()
                     .putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId));
@@ -198,17 +355,17 @@ public class WidgetPreference
     public boolean onPreferenceChange(@NonNull Preference pref, @NonNull Object value)
     {
         Context context = pref.getContext();
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        WidgetConfig config = WidgetConfig.getInstance(context);
         WidgetOptions options = new WidgetOptions(context, appWidgetId);
         String key = pref.getKey();
         String val = value.toString();
 
         // Update widget name
-        if (key.startsWith("name.") && !Objects.equals(sp.getString(key, ""), val))
+        if (key.startsWith("name.") && !Objects.equals(config.getString(key, ""), val))
             return true;
 
         // Update widget url
-        if (key.startsWith("url.") && !Objects.equals(sp.getString(key, ""), val)) {
+        if (key.startsWith("url.") && !Objects.equals(config.getString(key, ""), val)) {
             WidgetUpdate.update(
                     context,
                     options.setUrl(val),
@@ -218,7 +375,7 @@ public class WidgetPreference
         }
 
         // Update widget refresh interval
-        if (key.startsWith("interval.") && !Objects.equals(sp.getString(key, "-1"), val)) {
+        if (key.startsWith("interval.") && !Objects.equals(config.getString(key, "-1"), val)) {
             WidgetUpdate.schedule(
                     context,
                     options.setInterval(Integer.parseInt(val))
@@ -226,8 +383,16 @@ public class WidgetPreference
             return true;
         }
 
+        // Adaptive refresh applies from the next update
+        if (key.startsWith("maxinterval."))
+            return true;
+
+        // Screen state is checked by the scheduled refresh
+        if (key.startsWith("visible."))
+            return true;
+
         // Update wifi setting
-        if (key.startsWith("wifi.") && sp.getBoolean(key, false) != (Boolean) value) {
+        if (key.startsWith("wifi.") && config.getBoolean(key, false) != (Boolean) value) {
             WidgetUpdate.schedule(
                     context,
                     options.setWifi((Boolean) value)
@@ -236,7 +401,7 @@ public class WidgetPreference
         }
 
         // Update scale setting
-        if (key.startsWith("scale.") && sp.getBoolean(key, true) != (Boolean) value) {
+        if (key.startsWith("scale.") && config.getBoolean(key, true) != (Boolean) value) {
             WidgetUpdate.update(
                     context,
                     options.setScaleImage((Boolean) value),
@@ -246,7 +411,7 @@ public class WidgetPreference
         }
 
         // Update aspect setting
-        if (key.startsWith("aspect.") && sp.getBoolean(key, true) != (Boolean) value) {
+        if (key.startsWith("aspect.") && config.getBoolean(key, true) != (Boolean) value) {
             WidgetUpdate.update(
                     context,
                     options.setPreserveAspectRatio((Boolean) value),
@@ -255,6 +420,44 @@ public class WidgetPreference
             return true;
         }
 
+        // Update crop region, malformed region is refused
+        if (key.startsWith("crop.") && !Objects.equals(config.getString(key, ""), val)) {
+            if (!val.trim().isEmpty() && WidgetDecoder.parseCrop(val) == null)
+                return false;
+
+            WidgetUpdate.update(
+                    context,
+                    options.setCrop(val),
+                    true
+            );
+            return true;
+        }
+
+        // Progressive loading applies from the next update
+        if (key.startsWith("progressive."))
+            return true;
+
+        // Update memory saving setting
+        if (key.startsWith("memory.") && config.getBoolean(key, false) != (Boolean) value) {
+            WidgetUpdate.update(
+                    context,
+                    options.setMemorySaving((Boolean) value),
+                    true
+            );
+            return true;
+        }
+
+        // Update download size limit
+        if (key.startsWith("maxsize.") &&
+                !Objects.equals(config.getString(key, String.valueOf(WidgetOptions.DEFAULT_MAX_SIZE)), val)) {
+            WidgetUpdate.update(
+                    context,
+                    options.setMaxSize(Integer.parseInt(val)),
+                    true
+            );
+            return true;
+        }
+
         // Unknown pref
         return false;
     }
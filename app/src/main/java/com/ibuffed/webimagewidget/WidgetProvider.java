@@ -7,9 +7,18 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class WidgetProvider extends AppWidgetProvider
@@ -18,20 +27,58 @@ public class WidgetProvider extends AppWidgetProvider
     final static String APPWIDGET_TOAST = "com.ibuffed.webimagewidget.TOAST";
     final static String APPWIDGET_CLICK = "com.ibuffed.webimagewidget.CLICK";
 
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final long CACHED_RENDER_TIME = 5000;  // 5 sec
+
     @Override
     public void onUpdate(Context context,
                          AppWidgetManager appWidgetManager,
                          @NonNull int[] appWidgetIds)
     {
+        WidgetUtil.invalidateAppWidgetIds();
         WidgetUtil.appUpdate(context);
-        for (int appWidgetId : appWidgetIds) {
-            WidgetOptions options = new WidgetOptions(context, appWidgetId);
-            WidgetUpdate.update(context, options, false);
-            WidgetUpdate.schedule(context, options);
-        }
+
+        List<WidgetOptions> optionsList = new ArrayList<>();
+        for (int appWidgetId : appWidgetIds)
+            optionsList.add(new WidgetOptions(context, appWidgetId));
+
+        // Draw cached images right away, those are only revalidated, the
+        // network update draws the rest, including the widgets there was
+        // no time for within the broadcast
+        PendingResult result = goAsync();
+        executor.execute(() -> {
+            long deadline = SystemClock.elapsedRealtime() + CACHED_RENDER_TIME;
+            List<WidgetOptions> cached = new ArrayList<>();
+            List<WidgetOptions> missing = new ArrayList<>();
+
+            for (WidgetOptions options : optionsList) {
+                if (SystemClock.elapsedRealtime() <= deadline &&
+                        WidgetRenderer.renderCached(context, options)) {
+                    cached.add(options);
+                } else {
+                    missing.add(options);
+                }
+            }
+
+            // Fire and forget, WorkManager writes its database in the background
+            WidgetUpdate.catchUp(context, cached);
+            WidgetUpdate.update(context, missing, false);
+            result.finish();
+        });
+
+        WidgetUpdate.schedule(context, optionsList);
         super.onUpdate(context, appWidgetManager, appWidgetIds);
     }
 
+    /*
+     * Wait for the work started by earlier broadcasts.
+     */
+    @VisibleForTesting
+    static void awaitPending() throws ExecutionException, InterruptedException
+    {
+        executor.submit(() -> { }).get();
+    }
+
     @Override
     public void onReceive(Context context, Intent intent)
     {
@@ -64,9 +111,36 @@ public class WidgetProvider extends AppWidgetProvider
         }
     }
 
+    @Override
+    public void onAppWidgetOptionsChanged(Context context,
+                                          AppWidgetManager appWidgetManager,
+                                          int appWidgetId,
+                                          Bundle newOptions)
+    {
+        WidgetOptions options = new WidgetOptions(context, appWidgetId);
+
+        // Image is decoded (or requested from the server) at the widget size,
+        // redraw it after resize
+        if (options.getLayoutId() != R.layout.widget_center ||
+                WidgetUtil.isUrlTemplate(options.getUrl())) {
+            PendingResult result = goAsync();
+            executor.execute(() -> {
+                if (!WidgetRenderer.renderCached(context, options))
+                    WidgetUpdate.update(context, options, false);
+                result.finish();
+            });
+        }
+
+        super.onAppWidgetOptionsChanged(context, appWidgetManager, appWidgetId, newOptions);
+    }
+
     @Override
     public void onDeleted(Context context, @NonNull int[] appWidgetIds)
     {
+        // Settings of an older version are migrated before they are removed
+        WidgetUtil.appUpdate(context);
+        WidgetUtil.invalidateAppWidgetIds();
+
         for (int appWidgetId : appWidgetIds)
             WidgetUtil.deleteWidget(context, appWidgetId, false);
     }
@@ -74,6 +148,11 @@ public class WidgetProvider extends AppWidgetProvider
     @Override
     public void onRestored(Context context, @NonNull int[] oldWidgetIds, int[] newWidgetIds)
     {
+        // Restored settings of an older version are migrated before they
+        // are remapped, the platform restores widgets before updating them
+        WidgetUtil.appUpdate(context);
+        WidgetUtil.invalidateAppWidgetIds();
+
         for (int i = 0; i < oldWidgetIds.length; i++)
             WidgetUtil.restoreWidget(context, oldWidgetIds[i], newWidgetIds[i]);
     }
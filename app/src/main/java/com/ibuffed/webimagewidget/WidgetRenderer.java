@@ -0,0 +1,232 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.SizeF;
+import android.widget.RemoteViews;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class WidgetRenderer
+{
+    // Limit of RemoteViews accepted by the size-mapped constructor
+    private static final int MAX_SIZES = 16;
+
+    @NonNull
+    public static RemoteViews createViews(Context context,
+                                          int appWidgetId,
+                                          int layoutId,
+                                          @Nullable Bitmap bitmap)
+    {
+        // Create remote views
+        RemoteViews views = new RemoteViews(context.getPackageName(), layoutId);
+
+        if (bitmap != null)
+            views.setImageViewBitmap(R.id.appwidget_image, bitmap);
+
+        // Create pending intent
+        int pendingIntentFlags = PendingIntent.FLAG_UPDATE_CURRENT;
+
+        if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            pendingIntentFlags |= PendingIntent.FLAG_IMMUTABLE;
+
+        // Set onClick action
+        views.setOnClickPendingIntent(
+                R.id.appwidget_layout,
+                PendingIntent.getBroadcast(
+                        context,
+                        appWidgetId,
+                        new Intent(context, WidgetProvider.class)
+                                .putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId)
+                                .setAction(WidgetProvider.APPWIDGET_CLICK),
+                        pendingIntentFlags)
+        );
+
+        return views;
+    }
+
+    /*
+     * Push bitmap to the widget, the bitmap is handed over to the bitmap
+     * pool and must not be used afterwards. The update carries a content uri
+     * of the image, pixels go over Binder only if it could not be written.
+     */
+    public static void render(Context context,
+                              int appWidgetId,
+                              int layoutId,
+                              @Nullable Bitmap bitmap)
+    {
+        List<Bitmap> scaled = new ArrayList<>();
+        RemoteViews views = null;
+
+        // Let the launcher switch images on rotation and resize by itself,
+        // an unscaled image is the same at every size
+        if (bitmap != null && layoutId != R.layout.widget_center &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+            views = createSizedViews(context, appWidgetId, layoutId, bitmap, scaled);
+
+        if (views == null)
+            views = createImageViews(context, appWidgetId, layoutId, 0, bitmap);
+
+        AppWidgetManager.getInstance(context).updateAppWidget(appWidgetId, views);
+
+        // Pixels were written out or copied into the update, recycle the memory
+        for (Bitmap image : scaled)
+            WidgetBitmapPool.put(image);
+        WidgetBitmapPool.put(bitmap);
+    }
+
+    /*
+     * Push a low resolution preview, it is small and replaced shortly, so
+     * the pixels go inline instead of being written out. The bitmap is
+     * handed over to the bitmap pool.
+     */
+    public static void renderPreview(Context context,
+                                     int appWidgetId,
+                                     int layoutId,
+                                     @NonNull Bitmap bitmap)
+    {
+        AppWidgetManager.getInstance(context).updateAppWidget(
+                appWidgetId,
+                createViews(context, appWidgetId, layoutId, bitmap)
+        );
+
+        WidgetBitmapPool.put(bitmap);
+    }
+
+    /*
+     * Views showing bitmap, by content uri if it could be published.
+     */
+    @NonNull
+    private static RemoteViews createImageViews(Context context,
+                                                int appWidgetId,
+                                                int layoutId,
+                                                int variant,
+                                                @Nullable Bitmap bitmap)
+    {
+        Uri uri = null;
+
+        if (bitmap != null)
+            uri = WidgetImageProvider.publish(context, appWidgetId, variant, bitmap);
+
+        return createImageViews(context, appWidgetId, layoutId, bitmap, uri);
+    }
+
+    /*
+     * Views showing the image by its published uri, or inline without one.
+     */
+    @NonNull
+    private static RemoteViews createImageViews(Context context,
+                                                int appWidgetId,
+                                                int layoutId,
+                                                @Nullable Bitmap bitmap,
+                                                @Nullable Uri uri)
+    {
+        if (uri == null)
+            return createViews(context, appWidgetId, layoutId, bitmap);
+
+        RemoteViews views = createViews(context, appWidgetId, layoutId, null);
+        views.setImageViewUri(R.id.appwidget_image, uri);
+
+        return views;
+    }
+
+    /*
+     * Views for every size the launcher lays the widget out at, each with
+     * the image scaled down to that size. Scaled bitmaps are added to the
+     * list, sizes sharing a bitmap share its uri. Returns null when the
+     * launcher did not report the sizes.
+     */
+    @Nullable
+    @RequiresApi(Build.VERSION_CODES.S)
+    @SuppressWarnings("deprecation")
+    private static RemoteViews createSizedViews(Context context,
+                                                int appWidgetId,
+                                                int layoutId,
+                                                @NonNull Bitmap bitmap,
+                                                @NonNull List<Bitmap> scaled)
+    {
+        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(appWidgetId);
+        List<SizeF> sizes = options.getParcelableArrayList(AppWidgetManager.OPTION_APPWIDGET_SIZES);
+        float density = context.getResources().getDisplayMetrics().density;
+
+        if (sizes == null || sizes.isEmpty() || sizes.size() > MAX_SIZES)
+            return null;
+
+        Map<SizeF, RemoteViews> mapping = new HashMap<>();
+        Map<Bitmap, Uri> published = new HashMap<>();
+        int variant = 0;
+
+        for (SizeF size : sizes) {
+            // Keep enough pixels to fill the size with any scale type
+            float scale = Math.max(
+                    size.getWidth() * density / bitmap.getWidth(),
+                    size.getHeight() * density / bitmap.getHeight()
+            );
+            Bitmap image = bitmap;
+
+            if (scale > 0 && scale < 1) {
+                image = Bitmap.createScaledBitmap(
+                        bitmap,
+                        Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                        Math.max(1, Math.round(bitmap.getHeight() * scale)),
+                        true
+                );
+                scaled.add(image);
+            }
+
+            // Image is written once, every size it is not scaled for reuses it
+            if (!published.containsKey(image))
+                published.put(image, WidgetImageProvider.publish(
+                        context, appWidgetId, variant++, image
+                ));
+
+            mapping.put(size, createImageViews(
+                    context, appWidgetId, layoutId, image, published.get(image)
+            ));
+        }
+
+        return new RemoteViews(mapping);
+    }
+
+    /*
+     * Draw the widget from the image cache, returns false on cache miss.
+     */
+    @WorkerThread
+    public static boolean renderCached(Context context, @NonNull WidgetOptions options)
+    {
+        int appWidgetId = options.getAppWidgetId();
+        int layoutId = options.getLayoutId();
+        String url = WidgetUtil.expandUrl(context, appWidgetId, options.getUrl());
+        byte[] data = WidgetCache.get(context, appWidgetId, url);
+
+        if (data == null)
+            return false;
+
+        Bitmap bitmap = WidgetDecoder.forWidget(context, options).decode(data);
+
+        if (bitmap == null)
+            return false;
+
+        render(context, appWidgetId, layoutId, bitmap);
+
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Catch-up refresh on unlock for widgets updated only while the screen is on.
+ * Manifest registration works until Android 8, later the receiver is
+ * registered at runtime by the bucket worker that skipped a widget. A catch-up
+ * missed because the process was gone is done by the next bucket run.
+ */
+public class WidgetScreenReceiver extends BroadcastReceiver
+{
+    private static final Executor executor = Executors.newSingleThreadExecutor();
+    private static WidgetScreenReceiver receiver;
+
+    static synchronized void register(Context context)
+    {
+        if (receiver != null)
+            return;
+
+        receiver = new WidgetScreenReceiver();
+        ContextCompat.registerReceiver(
+                context.getApplicationContext(),
+                receiver,
+                new IntentFilter(Intent.ACTION_USER_PRESENT),
+                ContextCompat.RECEIVER_NOT_EXPORTED
+        );
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent)
+    {
+        if (!Intent.ACTION_USER_PRESENT.equals(intent.getAction()))
+            return;
+
+        PendingResult result = goAsync();
+        executor.execute(() -> {
+            catchUp(context);
+            result.finish();
+        });
+    }
+
+    /*
+     * Refresh the widgets that missed their scheduled refresh.
+     */
+    private static void catchUp(Context context)
+    {
+        List<WidgetOptions> stale = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for (int appWidgetId : WidgetUtil.getAppWidgetIds(context)) {
+            WidgetOptions options = new WidgetOptions(context, appWidgetId);
+
+            if (!options.getWhileVisible() || options.getInterval() <= 0)
+                continue;
+
+            long age = now - WidgetState.getCheckedTime(context, appWidgetId);
+            if (age < TimeUnit.MINUTES.toMillis(options.getInterval()))
+                continue;
+
+            if (options.isAdaptive() && new WidgetState(context, appWidgetId).getNextTime() > now)
+                continue;
+
+            stale.add(options);
+        }
+
+        if (stale.isEmpty())
+            return;
+
+        WidgetUpdate.catchUp(context, stale);
+        Log.i("WidgetScreenReceiver", "catching up " + stale.size() + " widgets");
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import java.util.Objects;
+
+
+/*
+ * Per-widget fetch state (cache validators etc). It is kept apart from the
+ * user preferences: it is not configuration and is never remapped on restore.
+ */
+public class WidgetState
+{
+    private static final String PREFS_NAME = "state";
+    private static final String[] KEYS = {
+            "url",
+            "etag",
+            "modified",
+            "hash",
+            "traffic",
+            "next",
+            "changed",
+            "period",
+            "checked"
+    };
+
+    private final Context context;
+    private final int appWidgetId;
+    private String url;
+    private String etag;
+    private String lastModified;
+    private String hash;
+    private long nextTime;
+    private long changedTime;
+    private long changePeriod;
+    private long checkedTime;
+    private long traffic;
+
+    WidgetState(Context context, int appWidgetId)
+    {
+        SharedPreferences sp = getPreferences(context);
+
+        url = sp.getString("url." + appWidgetId, null);
+        etag = sp.getString("etag." + appWidgetId, null);
+        lastModified = sp.getString("modified." + appWidgetId, null);
+        hash = sp.getString("hash." + appWidgetId, null);
+        nextTime = sp.getLong("next." + appWidgetId, 0);
+        changedTime = sp.getLong("changed." + appWidgetId, 0);
+        changePeriod = sp.getLong("period." + appWidgetId, 0);
+        checkedTime = sp.getLong("checked." + appWidgetId, 0);
+        this.context = context;
+        this.appWidgetId = appWidgetId;
+    }
+
+    private static SharedPreferences getPreferences(Context context)
+    {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static void delete(Context context, int appWidgetId)
+    {
+        SharedPreferences.Editor edit = getPreferences(context).edit();
+
+        for (String key : KEYS)
+            edit.remove(key + "." + appWidgetId);
+
+        edit.apply();
+    }
+
+    public static long getTraffic(Context context, int appWidgetId)
+    {
+        return getPreferences(context).getLong("traffic." + appWidgetId, 0);
+    }
+
+    public static long getCheckedTime(Context context, int appWidgetId)
+    {
+        return getPreferences(context).getLong("checked." + appWidgetId, 0);
+    }
+
+    /*
+     * Write the state in one go, downloaded bytes are added to the counter
+     * kept across updates.
+     */
+    public void save()
+    {
+        SharedPreferences sp = getPreferences(context);
+        String trafficKey = "traffic." + appWidgetId;
+
+        synchronized (WidgetState.class) {
+            sp.edit()
+                    .putString("url." + appWidgetId, url)
+                    .putString("etag." + appWidgetId, etag)
+                    .putString("modified." + appWidgetId, lastModified)
+                    .putString("hash." + appWidgetId, hash)
+                    .putLong("next." + appWidgetId, nextTime)
+                    .putLong("changed." + appWidgetId, changedTime)
+                    .putLong("period." + appWidgetId, changePeriod)
+                    .putLong("checked." + appWidgetId, checkedTime)
+                    .putLong(trafficKey, sp.getLong(trafficKey, 0) + traffic)
+                    .apply();
+        }
+
+        traffic = 0;
+    }
+
+    public boolean hasValidators(String url)
+    {
+        return Objects.equals(this.url, url) && (etag != null || lastModified != null);
+    }
+
+    public String getEtag()
+    {
+        return etag;
+    }
+
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+
+    /*
+     * True if the widget shows exactly this image downloaded from url.
+     */
+    public boolean isShowing(String url, @Nullable String hash)
+    {
+        return hash != null && Objects.equals(this.url, url) && hash.equals(this.hash);
+    }
+
+    /*
+     * Count downloaded bytes.
+     */
+    public WidgetState addTraffic(long bytes)
+    {
+        traffic += bytes;
+        return this;
+    }
+
+    /*
+     * Remember wall clock time of the last successful check of the image.
+     */
+    public WidgetState setCheckedTime(long checkedTime)
+    {
+        this.checkedTime = checkedTime;
+        return this;
+    }
+
+    public WidgetState setHash(String hash)
+    {
+        this.hash = hash;
+        return this;
+    }
+
+    public WidgetState setValidators(String url, String etag, String lastModified)
+    {
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /*
+     * Wall clock time the adaptive refresh is due, 0 if it is due now.
+     */
+    public long getNextTime()
+    {
+        return nextTime;
+    }
+
+    public WidgetState setNextTime(long nextTime)
+    {
+        this.nextTime = nextTime;
+        return this;
+    }
+
+    /*
+     * Plan the next adaptive refresh after a successful check. The source
+     * is polled about twice per observed change period, but not before the
+     * response expires, and the delay is kept within minDelay and maxDelay.
+     */
+    public WidgetState setChecked(boolean changed, long freshness, long minDelay, long maxDelay)
+    {
+        long now = System.currentTimeMillis();
+
+        if (changed) {
+            if (changedTime > 0) {
+                long period = now - changedTime;
+                changePeriod = changePeriod > 0 ? (changePeriod * 3 + period) / 4 : period;
+            }
+            changedTime = now;
+        } else if (changedTime > 0) {
+            // Unchanged for longer than expected, the source is slower
+            changePeriod = Math.max(changePeriod, now - changedTime);
+        }
+
+        long delay = Math.max(freshness, changePeriod / 2);
+        nextTime = now + Math.max(minDelay, Math.min(delay, maxDelay));
+
+        return this;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/*
+ * Timing breakdown of the last MAX_RUNS updates of every widget, kept as a
+ * ring buffer in preferences of its own, so rewriting it does not rewrite
+ * the widget state.
+ */
+public class WidgetStats
+{
+    private static final String PREFS_NAME = "stats";
+    private static final int MAX_RUNS = 50;
+
+    // Run values, milliseconds unless noted, -1 if not measured
+    static final int QUEUE = 0;
+    static final int CONNECT = 1;
+    static final int FIRST_BYTE = 2;
+    static final int DOWNLOAD = 3;
+    static final int BYTES = 4;  // bytes
+    static final int DECODE = 5;
+    static final int PUSH = 6;
+    static final int TOTAL = 7;
+    static final int VALUES = 8;
+
+    public static class Run
+    {
+        private final long[] values = new long[VALUES];
+        private boolean success;
+
+        Run()
+        {
+            Arrays.fill(values, -1);
+        }
+
+        public Run set(int index, long value)
+        {
+            values[index] = value;
+            return this;
+        }
+
+        public Run setSuccess(boolean success)
+        {
+            this.success = success;
+            return this;
+        }
+    }
+
+    public static class Summary
+    {
+        private final int count;
+        private final int successCount;
+        private final long[][] values = new long[VALUES][];
+
+        private Summary(@NonNull List<Run> runs)
+        {
+            int successCount = 0;
+
+            for (Run run : runs)
+                if (run.success)
+                    successCount++;
+
+            for (int i = 0; i < VALUES; i++) {
+                long[] measured = new long[runs.size()];
+                int n = 0;
+
+                for (Run run : runs)
+                    if (run.values[i] >= 0)
+                        measured[n++] = run.values[i];
+
+                values[i] = Arrays.copyOf(measured, n);
+                Arrays.sort(values[i]);
+            }
+
+            this.count = runs.size();
+            this.successCount = successCount;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+
+        public int getSuccessRate()
+        {
+            return count == 0 ? 0 : successCount * 100 / count;
+        }
+
+        /*
+         * Nearest-rank percentile of a run value, -1 if it was never measured.
+         */
+        public long getPercentile(int index, int percentile)
+        {
+            long[] sorted = values[index];
+
+            if (sorted.length == 0)
+                return -1;
+
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+
+            return sorted[Math.max(rank, 1) - 1];
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context)
+    {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @NonNull
+    private static List<Run> load(@NonNull SharedPreferences sp, int appWidgetId)
+    {
+        List<Run> runs = new ArrayList<>();
+        String stats = sp.getString("stats." + appWidgetId, "");
+
+        for (String entry : stats.split(";")) {
+            String[] fields = entry.split(",");
+
+            if (fields.length != VALUES + 1)
+                continue;
+
+            try {
+                Run run = new Run().setSuccess(fields[0].equals("1"));
+                for (int i = 0; i < VALUES; i++)
+                    run.set(i, Long.parseLong(fields[i + 1]));
+                runs.add(run);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        return runs;
+    }
+
+    public static synchronized void add(Context context, int appWidgetId, @NonNull Run run)
+    {
+        SharedPreferences sp = getPreferences(context);
+        List<Run> runs = load(sp, appWidgetId);
+
+        runs.add(run);
+
+        // Drop oldest
+        while (runs.size() > MAX_RUNS)
+            runs.remove(0);
+
+        StringBuilder stats = new StringBuilder();
+
+        for (Run r : runs) {
+            stats.append(r.success ? "1" : "0");
+            for (long value : r.values)
+                stats.append(',').append(value);
+            stats.append(';');
+        }
+
+        sp.edit().putString("stats." + appWidgetId, stats.toString()).apply();
+    }
+
+    @NonNull
+    public static synchronized Summary getSummary(Context context, int appWidgetId)
+    {
+        return new Summary(load(getPreferences(context), appWidgetId));
+    }
+
+    public static synchronized void delete(Context context, int appWidgetId)
+    {
+        getPreferences(context).edit().remove("stats." + appWidgetId).apply();
+    }
+}
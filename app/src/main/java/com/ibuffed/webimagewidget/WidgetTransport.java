@@ -0,0 +1,55 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+
+/*
+ * HTTP client used by WidgetFetcher. A single instance is shared by the whole
+ * process, so implementations are expected to pool connections.
+ */
+public interface WidgetTransport
+{
+    interface Connection extends Closeable
+    {
+        int getResponseCode() throws IOException;
+
+        /*
+         * Milliseconds spent connecting (0 for a pooled connection) and
+         * from the start until the response headers arrived.
+         */
+        long getConnectTime();
+
+        long getFirstByteTime();
+
+        @Nullable
+        String getHeaderField(@NonNull String name);
+
+        /*
+         * Response body, throws FileNotFoundException for 4xx responses
+         * like HttpURLConnection does.
+         */
+        @NonNull
+        InputStream getInputStream() throws IOException;
+
+        /*
+         * Release the connection, keeping it for reuse when possible.
+         */
+        @Override
+        void close();
+    }
+
+    /*
+     * Send GET request and wait for the response headers.
+     */
+    @NonNull
+    Connection open(@NonNull String url, @NonNull Map<String, String> headers) throws IOException;
+}
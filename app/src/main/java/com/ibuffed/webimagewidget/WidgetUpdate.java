@@ -5,12 +5,16 @@ package com.ibuffed.webimagewidget;
 
 import android.appwidget.AppWidgetManager;
 import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
 import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
@@ -20,9 +24,18 @@ import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class WidgetUpdate
@@ -30,9 +43,28 @@ public class WidgetUpdate
     final static String SCHEDULE_WORKER_TAG = "PeriodicWorker";
     final static String UPDATE_WORKER_TAG = "OneTimeWorker";
 
+    private final static long RETRY_DELAY = 30;  // sec
+
+    // Bucket refresh stays well within the 10 minute limit of a worker
+    private final static int BATCH_THREADS = 4;
+    private final static long BATCH_TIME = TimeUnit.MINUTES.toMillis(8);
+    private final static long BATCH_GRACE = TimeUnit.SECONDS.toMillis(45);
+
     final static String EXTRA_APPWIDGET_URL = "appWidgetURL";
-    final static String EXTRA_APPWIDGET_LAYOUT_ID = "appWidgetLayoutId";
+    final static String EXTRA_APPWIDGET_SCALE = "appWidgetScale";
+    final static String EXTRA_APPWIDGET_ASPECT = "appWidgetAspect";
+    final static String EXTRA_APPWIDGET_MAX_SIZE = "appWidgetMaxSize";
+    final static String EXTRA_APPWIDGET_PROGRESSIVE = "appWidgetProgressive";
+    final static String EXTRA_APPWIDGET_MEMORY_SAVING = "appWidgetMemorySaving";
+    final static String EXTRA_APPWIDGET_CROP = "appWidgetCrop";
     final static String EXTRA_APPWIDGET_SHOW_TOAST = "appWidgetShowToast";
+    final static String EXTRA_APPWIDGET_REVALIDATE = "appWidgetRevalidate";
+    final static String EXTRA_APPWIDGET_ATTEMPT = "appWidgetAttempt";
+    final static String EXTRA_APPWIDGET_DUE_TIME = "appWidgetDueTime";
+    final static String EXTRA_SCHEDULE_INTERVAL = "scheduleInterval";
+    final static String EXTRA_SCHEDULE_WIFI = "scheduleWifi";
+
+    private static final AtomicBoolean dummyChecked = new AtomicBoolean();
 
     public static void log(int appWidgetId, String msg)
     {
@@ -69,105 +101,318 @@ public class WidgetUpdate
         }
     }
 
+    /*
+     * Refreshes every widget with the same interval and network setting,
+     * so there is one periodic wakeup per bucket instead of one per widget.
+     */
+    public static class BatchWorker extends Worker
+    {
+        public BatchWorker(@NonNull Context context, @NonNull WorkerParameters workerParams)
+        {
+            super (context, workerParams);
+        }
+
+        @NonNull
+        @Override
+        public Result doWork()
+        {
+            Context context = getApplicationContext();
+            Data inputData = getInputData();
+            int interval = inputData.getInt(EXTRA_SCHEDULE_INTERVAL, -1);
+            boolean wifi = inputData.getBoolean(EXTRA_SCHEDULE_WIFI, false);
+            PowerManager powerManager =
+                    (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            boolean interactive = powerManager == null || powerManager.isInteractive();
+            List<WidgetOptions> due = new ArrayList<>();
+            boolean skipped = false;
+            int count = 0;
+
+            for (int appWidgetId : WidgetUtil.getAppWidgetIds(context)) {
+                WidgetOptions options = new WidgetOptions(context, appWidgetId);
+
+                if (options.getInterval() != interval || options.getWifi() != wifi)
+                    continue;
+
+                count++;
+
+                // Nobody looks at the widget, catch up on unlock
+                if (options.getWhileVisible() && !interactive) {
+                    skipped = true;
+                    continue;
+                }
+
+                // Adaptive widget is not due yet, a bit early is fine
+                // since the next run is a whole interval away
+                if (options.isAdaptive()) {
+                    long wait = new WidgetState(context, appWidgetId).getNextTime() -
+                            System.currentTimeMillis();
+                    if (wait > TimeUnit.MINUTES.toMillis(interval) / 4)
+                        continue;
+                }
+
+                due.add(options);
+            }
+
+            refresh(context, due);
+
+            if (skipped) {
+                WidgetScreenReceiver.register(context);
+                Log.i("WidgetUpdate", "bucket " + getScheduleName(interval, wifi) +
+                        " skipped widgets while the screen is off");
+            }
+
+            // Last widget left this bucket
+            if (count == 0) {
+                WorkManager.getInstance(context).cancelUniqueWork(getScheduleName(interval, wifi));
+                Log.i("WidgetUpdate", "bucket " + getScheduleName(interval, wifi) + " is empty");
+            }
+
+            return Result.success();
+        }
+
+        /*
+         * Refresh widgets a few at a time, so a slow host does not hold up
+         * the whole bucket. Widgets not started before the worker is stopped
+         * or runs out of time are left for the next run.
+         */
+        private void refresh(Context context, @NonNull List<WidgetOptions> due)
+        {
+            if (due.isEmpty())
+                return;
+
+            ExecutorService executor =
+                    Executors.newFixedThreadPool(Math.min(BATCH_THREADS, due.size()));
+            long deadline = SystemClock.elapsedRealtime() + BATCH_TIME;
+
+            for (WidgetOptions options : due) {
+                executor.execute(() -> {
+                    if (isStopped() || SystemClock.elapsedRealtime() > deadline) {
+                        log(options.getAppWidgetId(), "left for the next run");
+                        return;
+                    }
+
+                    WidgetWorker.Outcome outcome =
+                            WidgetWorker.refresh(context, options, true, true, -1);
+
+                    // Retry failed widget alone, not the whole bucket
+                    if (outcome.status == WidgetWorker.Outcome.Status.RETRY)
+                        retry(
+                                context,
+                                options.toData()
+                                        .putBoolean(EXTRA_APPWIDGET_SHOW_TOAST, false)
+                                        .putBoolean(EXTRA_APPWIDGET_REVALIDATE, true)
+                                        .build(),
+                                1,
+                                outcome.retryAfter
+                        );
+                });
+            }
+
+            executor.shutdown();
+
+            // Downloads time out on their own, this only bounds the wait
+            try {
+                if (!executor.awaitTermination(BATCH_TIME + BATCH_GRACE, TimeUnit.MILLISECONDS))
+                    Log.w("WidgetUpdate", "bucket refresh did not finish in time");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @NonNull
+    static String getScheduleName(int interval, boolean wifi)
+    {
+        return SCHEDULE_WORKER_TAG + "@" + interval + (wifi ? "-wifi" : "");
+    }
+
     /*
      * workaround
      * https://issuetracker.google.com/issues/115575872
      * https://commonsware.com/blog/2018/11/24/workmanager-app-widgets-side-effects.html
+     *
+     * The dummy work is checked once per process, the query result is
+     * handled asynchronously so callers never wait for the database.
      */
     @NonNull
     public static WorkManager getWorkManager(Context context)
     {
         WorkManager workManager = WorkManager.getInstance(context);
-        boolean dummyRunning = false;
-
-        try {
-            List<WorkInfo> workInfoList =
-                    workManager.getWorkInfosForUniqueWork(DummyWorker.DUMMY_WORK_NAME).get();
-            for (WorkInfo workInfo : workInfoList) {
-                WorkInfo.State state = workInfo.getState();
-                dummyRunning = state == WorkInfo.State.RUNNING |
-                        state == WorkInfo.State.ENQUEUED;
+
+        if (!dummyChecked.compareAndSet(false, true))
+            return workManager;
+
+        Context appContext = context.getApplicationContext();
+        ListenableFuture<List<WorkInfo>> future =
+                workManager.getWorkInfosForUniqueWork(DummyWorker.DUMMY_WORK_NAME);
+
+        future.addListener(() -> {
+            boolean dummyRunning = false;
+
+            try {
+                for (WorkInfo workInfo : future.get()) {
+                    WorkInfo.State state = workInfo.getState();
+                    dummyRunning |= state == WorkInfo.State.RUNNING ||
+                            state == WorkInfo.State.ENQUEUED;
+                }
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
 
-        if (!dummyRunning)
-            DummyWorker.schedule(context);
+            if (!dummyRunning)
+                DummyWorker.schedule(appContext);
+        }, Runnable::run);
 
         return workManager;
     }
 
     public static void scheduleCancel(Context context, @NonNull WidgetOptions options)
     {
-        getWorkManager(context)
-                .cancelAllWorkByTag(SCHEDULE_WORKER_TAG + "#" + options.getAppWidgetId());
-
+        // Widget drops out of its bucket once it is no longer configured
         log(options.getAppWidgetId(), "any scheduled update was canceled");
     }
 
     public static void schedule(Context context, @NonNull WidgetOptions options)
     {
-        WorkManager workManager = getWorkManager(context);
-        String tag = SCHEDULE_WORKER_TAG + "#" + options.getAppWidgetId();
-
-        workManager.cancelAllWorkByTag(tag);
-
-        if (options.getInterval() > 0) {
-            Data.Builder data = new Data.Builder();
-            data.putInt(AppWidgetManager.EXTRA_APPWIDGET_ID, options.getAppWidgetId());
-            data.putString(EXTRA_APPWIDGET_URL, options.getUrl());
-            data.putInt(EXTRA_APPWIDGET_LAYOUT_ID, options.getLayoutId());
-            data.putBoolean(EXTRA_APPWIDGET_SHOW_TOAST, false);
-
-            NetworkType networkType =
-                    options.getWifi() ? NetworkType.UNMETERED : NetworkType.CONNECTED;
-            Constraints constraints =
-                    new Constraints.Builder().setRequiredNetworkType(networkType).build();
-            PeriodicWorkRequest.Builder periodicWorkRequestBuilder =
-                    new PeriodicWorkRequest.Builder(
-                            WidgetWorker.class,
-                            options.getInterval(),
-                            TimeUnit.MINUTES,
-                            PeriodicWorkRequest.MIN_PERIODIC_FLEX_MILLIS,
-                            TimeUnit.MILLISECONDS
-                    );
-
-            workManager.enqueue(
-                    periodicWorkRequestBuilder
-                            .setConstraints(constraints)
-                            .setInputData(data.build())
-                            .addTag(tag)
-                            .build()
-            );
+        schedule(context, Collections.singletonList(options));
+    }
+
+    /*
+     * Schedule several widgets, every bucket is enqueued only once.
+     */
+    public static void schedule(Context context, @NonNull List<WidgetOptions> optionsList)
+    {
+        Set<String> buckets = new HashSet<>();
+
+        for (WidgetOptions options : optionsList) {
+            if (options.getInterval() <= 0) {
+                log(options.getAppWidgetId(), "any scheduled update was canceled");
+                continue;
+            }
+
+            String name = getScheduleName(options.getInterval(), options.getWifi());
+
+            // Join the bucket, or start it if this is the first widget
+            if (buckets.add(name)) {
+                Data.Builder data = new Data.Builder();
+                data.putInt(EXTRA_SCHEDULE_INTERVAL, options.getInterval());
+                data.putBoolean(EXTRA_SCHEDULE_WIFI, options.getWifi());
+
+                NetworkType networkType =
+                        options.getWifi() ? NetworkType.UNMETERED : NetworkType.CONNECTED;
+                Constraints constraints =
+                        new Constraints.Builder().setRequiredNetworkType(networkType).build();
+                PeriodicWorkRequest.Builder periodicWorkRequestBuilder =
+                        new PeriodicWorkRequest.Builder(
+                                BatchWorker.class,
+                                options.getInterval(),
+                                TimeUnit.MINUTES,
+                                PeriodicWorkRequest.MIN_PERIODIC_FLEX_MILLIS,
+                                TimeUnit.MILLISECONDS
+                        );
+
+                getWorkManager(context).enqueueUniquePeriodicWork(
+                        name,
+                        ExistingPeriodicWorkPolicy.KEEP,
+                        periodicWorkRequestBuilder
+                                .setConstraints(constraints)
+                                .setInputData(data.build())
+                                .addTag(SCHEDULE_WORKER_TAG)
+                                .build()
+                );
+            }
 
             log(options.getAppWidgetId(),
                     "scheduled update every " + options.getInterval() + " minutes");
-        } else {
-            log(options.getAppWidgetId(), "any scheduled update was canceled");
         }
     }
 
     public static void update(Context context, @NonNull WidgetOptions options, boolean showToast)
     {
-        Data.Builder data = new Data.Builder();
-        data.putInt(AppWidgetManager.EXTRA_APPWIDGET_ID, options.getAppWidgetId());
-        data.putString(EXTRA_APPWIDGET_URL, options.getUrl());
-        data.putInt(EXTRA_APPWIDGET_LAYOUT_ID, options.getLayoutId());
-        data.putBoolean(EXTRA_APPWIDGET_SHOW_TOAST, showToast);
+        update(context, Collections.singletonList(options), showToast);
+    }
+
+    /*
+     * Update several widgets, all requests go in a single enqueue.
+     */
+    public static void update(Context context,
+                              @NonNull List<WidgetOptions> optionsList,
+                              boolean showToast)
+    {
+        enqueue(context, optionsList, showToast, false);
+    }
+
+    /*
+     * Revalidate widgets whose scheduled refresh was skipped, quietly.
+     */
+    public static void catchUp(Context context, @NonNull List<WidgetOptions> optionsList)
+    {
+        enqueue(context, optionsList, false, true);
+    }
+
+    private static void enqueue(Context context,
+                                @NonNull List<WidgetOptions> optionsList,
+                                boolean showToast,
+                                boolean revalidate)
+    {
+        List<OneTimeWorkRequest> requests = new ArrayList<>();
 
         Constraints.Builder constraints = new Constraints.Builder();
         if (!showToast)
             constraints.setRequiredNetworkType(NetworkType.CONNECTED);
 
+        for (WidgetOptions options : optionsList) {
+            Data.Builder data = options.toData();
+            data.putBoolean(EXTRA_APPWIDGET_SHOW_TOAST, showToast);
+            data.putBoolean(EXTRA_APPWIDGET_REVALIDATE, revalidate);
+            data.putLong(EXTRA_APPWIDGET_DUE_TIME, System.currentTimeMillis());
+
+            requests.add(new OneTimeWorkRequest.Builder(WidgetWorker.class)
+                    .addTag(UPDATE_WORKER_TAG + "#" + options.getAppWidgetId())
+                    .setConstraints(constraints.build())
+                    .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, RETRY_DELAY, TimeUnit.SECONDS)
+                    .setInputData(data.build())
+                    .build());
+        }
+
+        if (!requests.isEmpty())
+            getWorkManager(context).enqueue(requests);
+    }
+
+    /*
+     * Enqueue another attempt of a failed update after at least delay
+     * milliseconds (exponential backoff is used when it is longer).
+     */
+    public static void retry(Context context, @NonNull Data data, int attempt, long delay)
+    {
+        int appWidgetId = data.getInt(
+                AppWidgetManager.EXTRA_APPWIDGET_ID,
+                AppWidgetManager.INVALID_APPWIDGET_ID
+        );
+        long backoff = TimeUnit.SECONDS.toMillis(RETRY_DELAY << Math.min(attempt - 1, 10));
+        long initialDelay = Math.max(delay, backoff);
+
         getWorkManager(context).enqueue(
                 new OneTimeWorkRequest.Builder(WidgetWorker.class)
-                        .addTag(UPDATE_WORKER_TAG + "#" + options.getAppWidgetId())
-                        .setConstraints(constraints.build())
-                        .setInputData(data.build())
+                        .addTag(UPDATE_WORKER_TAG + "#" + appWidgetId)
+                        .setConstraints(new Constraints.Builder()
+                                .setRequiredNetworkType(NetworkType.CONNECTED)
+                                .build())
+                        .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, RETRY_DELAY, TimeUnit.SECONDS)
+                        .setInitialDelay(initialDelay, TimeUnit.MILLISECONDS)
+                        .setInputData(new Data.Builder()
+                                .putAll(data)
+                                .putInt(EXTRA_APPWIDGET_ATTEMPT, attempt)
+                                .putLong(
+                                        EXTRA_APPWIDGET_DUE_TIME,
+                                        System.currentTimeMillis() + initialDelay
+                                )
+                                .build())
                         .build()
         );
+
+        log(appWidgetId, "retry #" + attempt + " in " + initialDelay / 1000 + " sec");
     }
 }
@@ -9,7 +9,10 @@ import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.graphics.Point;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -17,27 +20,14 @@ import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.List;
 
 
 public class WidgetUtil
 {
     public static final String VERSION_KEY = "version";
 
-    private enum keyType {
-        STRING,
-        BOOLEAN
-    }
-
-    private static final Map<String, keyType> widgetPrefs = Map.of(
-            "configured", keyType.BOOLEAN,
-            "name", keyType.STRING,
-            "url", keyType.STRING,
-            "interval", keyType.STRING,
-            "wifi", keyType.BOOLEAN,
-            "scale", keyType.BOOLEAN,
-            "aspect", keyType.BOOLEAN
-        );
+    private static volatile int[] appWidgetIds;
 
     @NonNull
     public static String getDisplayName(Context context, @Nullable String name, int appWidgetId)
@@ -55,42 +45,117 @@ public class WidgetUtil
                 url;
     }
 
+    /*
+     * Largest size in pixels the widget can be displayed at (portrait or
+     * landscape), 0x0 when the launcher did not report it yet.
+     */
+    @NonNull
+    public static Point getWidgetSize(Context context, int appWidgetId)
+    {
+        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(appWidgetId);
+        float density = context.getResources().getDisplayMetrics().density;
+
+        int width = Math.max(
+                options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH),
+                options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH)
+        );
+        int height = Math.max(
+                options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT),
+                options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT)
+        );
+
+        return new Point(Math.round(width * density), Math.round(height * density));
+    }
+
+    public static boolean isUrlTemplate(@Nullable String url)
+    {
+        return url != null && url.contains("{");
+    }
+
+    /*
+     * Fill {width} and {height} (pixels) and {density} placeholders of url
+     * from the current widget size, so the server can send a fitting image.
+     */
+    @NonNull
+    public static String expandUrl(Context context, int appWidgetId, @NonNull String url)
+    {
+        if (!isUrlTemplate(url))
+            return url;
+
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        Point size = getWidgetSize(context, appWidgetId);
+
+        // Size is not known yet, the screen size is the upper bound
+        if (size.x <= 0 || size.y <= 0)
+            size.set(metrics.widthPixels, metrics.heightPixels);
+
+        return url
+                .replace("{width}", String.valueOf(size.x))
+                .replace("{height}", String.valueOf(size.y))
+                .replace("{density}", String.valueOf(metrics.density));
+    }
+
+    /*
+     * Sorted ids of configured widgets. The array is shared until the index
+     * is invalidated, callers must not modify it.
+     */
     @NonNull
     public static int[] getAppWidgetIds(Context context)
     {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        ComponentName name = new ComponentName(context, WidgetProvider.class);
-        ArrayList<Integer> idList = new ArrayList<>();
+        int[] ids = appWidgetIds;
+
+        if (ids != null)
+            return ids;
+
+        WidgetConfig config = WidgetConfig.getInstance(context);
+
+        // Configuration changes invalidate the index holding this lock
+        synchronized (config) {
+            // Provider callbacks invalidate without the lock, read once
+            ids = appWidgetIds;
+            if (ids != null)
+                return ids;
+
+            AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+            ComponentName name = new ComponentName(context, WidgetProvider.class);
+            int[] hostIds = appWidgetManager.getAppWidgetIds(name);
+            int count = 0;
 
-        for (int appWidgetId : appWidgetManager.getAppWidgetIds(name))
-            if (sp.getBoolean("configured." + appWidgetId, false))
-                idList.add(appWidgetId);
+            ids = new int[hostIds.length];
 
-        int[] ids = new int[idList.size()];
-        int i = 0;
+            for (int appWidgetId : hostIds)
+                if (config.isConfigured(appWidgetId))
+                    ids[count++] = appWidgetId;
 
-        for (Integer e : idList)
-            ids[i++] = e;
+            ids = Arrays.copyOf(ids, count);
+            Arrays.sort(ids);
 
-        Arrays.sort(ids);
+            return appWidgetIds = ids;
+        }
+    }
 
-        return ids;
+    /*
+     * Widget was configured, deleted or restored, rebuild the id index
+     * on the next lookup.
+     */
+    public static void invalidateAppWidgetIds()
+    {
+        appWidgetIds = null;
     }
 
     public static void deleteWidget(Context context, int appWidgetId, boolean force)
     {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor edit = prefs.edit();
-
         // Clean scheduled update if any
         WidgetUpdate.scheduleCancel(context, new WidgetOptions(context, appWidgetId));
 
-        // Remove preferences
-        for (String key : widgetPrefs.keySet())
-            edit.remove(key + "." + appWidgetId);
+        // Remove configuration
+        WidgetConfig.getInstance(context).delete(appWidgetId);
 
-        edit.apply();
+        // Remove fetch state, cached and published image
+        WidgetState.delete(context, appWidgetId);
+        WidgetStats.delete(context, appWidgetId);
+        WidgetCache.delete(context, appWidgetId);
+        WidgetImageProvider.unpublish(context, appWidgetId);
 
         // Remove it from host
         if (force)
@@ -99,28 +164,16 @@ public class WidgetUtil
 
     public static void restoreWidget(Context context, int oldWidgetId, int newWidgetId)
     {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor edit = prefs.edit();
-
-        for (Map.Entry<String, keyType> entry : widgetPrefs.entrySet()) {
-            String oldKey = entry.getKey() + "." + oldWidgetId;
-            String newKey = entry.getKey() + "." + newWidgetId;
-
-            // Remap widget preferences
-            if (prefs.contains(oldKey)) {
-                switch (entry.getValue()) {
-                    case STRING:
-                        edit.putString(newKey, prefs.getString(oldKey, ""));
-                        break;
-                    case BOOLEAN:
-                        edit.putBoolean(newKey, prefs.getBoolean(oldKey, false));
-                        break;
-                }
-                edit.remove(oldKey);
-            }
-        }
+        // Remap widget configuration
+        WidgetConfig.getInstance(context).move(oldWidgetId, newWidgetId);
 
-        edit.apply();
+        // Fetch state is not remapped, restored widget starts with a full download
+        WidgetState.delete(context, oldWidgetId);
+        WidgetStats.delete(context, oldWidgetId);
+
+        // Keep cached image to draw restored widget before the download
+        WidgetCache.move(context, oldWidgetId, newWidgetId);
+        WidgetImageProvider.unpublish(context, oldWidgetId);
     }
 
     @SuppressLint("UnspecifiedImmutableFlag")
@@ -134,6 +187,23 @@ public class WidgetUtil
 
         prefs.edit().putInt(VERSION_KEY, BuildConfig.VERSION_CODE).apply();
 
+        // Widget settings moved to the typed configuration store,
+        // per-widget periodic updates were replaced with interval buckets
+        if (oldVersion < 17) {
+            WidgetConfig.getInstance(context).migrate(context);
+
+            List<WidgetOptions> optionsList = new ArrayList<>();
+
+            for (int appWidgetId : getAppWidgetIds(context)) {
+                WidgetUpdate.getWorkManager(context).cancelAllWorkByTag(
+                        WidgetUpdate.SCHEDULE_WORKER_TAG + "#" + appWidgetId
+                );
+                optionsList.add(new WidgetOptions(context, appWidgetId));
+            }
+
+            WidgetUpdate.schedule(context, optionsList);
+        }
+
         Log.i("WidgetUtil", "canceled all pending alarms");
     }
 }
@@ -3,37 +3,54 @@
  */
 package com.ibuffed.webimagewidget;
 
-import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.RemoteViews;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.work.Data;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import java.io.FileNotFoundException;
-import java.io.InputStream;
-import java.net.ConnectException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
 
 public class WidgetWorker extends Worker
 {
-    private String message;
-    private Bitmap bitmap;
+    private static final int MAX_ATTEMPTS = 3;
+
+    static class Outcome
+    {
+        enum Status
+        {
+            UPDATED,
+            NOT_MODIFIED,
+            UNCHANGED,
+            FAILED,
+            RETRY
+        }
+
+        final Status status;
+        final String message;
+        final long retryAfter;
+
+        Outcome(Status status, String message, long retryAfter)
+        {
+            this.status = status;
+            this.message = message;
+            this.retryAfter = retryAfter;
+        }
+
+        Outcome(Status status)
+        {
+            this(status, null, 0);
+        }
+    }
 
     public WidgetWorker(@NonNull Context context, @NonNull WorkerParameters workerParams)
     {
@@ -48,62 +65,51 @@ public class WidgetWorker extends Worker
         Context context = getApplicationContext();
 
         // Parse input data
-        String url = inputData.getString(
-                WidgetUpdate.EXTRA_APPWIDGET_URL
-        );
-        int appWidgetId = inputData.getInt(
-                AppWidgetManager.EXTRA_APPWIDGET_ID,
-                AppWidgetManager.INVALID_APPWIDGET_ID
-        );
-        int layoutId = inputData.getInt(
-                WidgetUpdate.EXTRA_APPWIDGET_LAYOUT_ID,
-                -1
-        );
+        WidgetOptions options = new WidgetOptions(context, inputData);
+        int appWidgetId = options.getAppWidgetId();
         boolean showToast = inputData.getBoolean(
                 WidgetUpdate.EXTRA_APPWIDGET_SHOW_TOAST,
                 false
         );
+        boolean revalidate = inputData.getBoolean(
+                WidgetUpdate.EXTRA_APPWIDGET_REVALIDATE,
+                false
+        );
 
         // Check input data
-        if (appWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID || layoutId == -1)
+        if (appWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID)
             return Result.failure();
 
-        // Create remote views
-        RemoteViews views = new RemoteViews(context.getPackageName(), layoutId);
-
-        // Download image from url
-        if (download(url))
-            views.setImageViewBitmap(R.id.appwidget_image, bitmap);
-
-        // Create pending intent
-        int pendingIntentFlags = PendingIntent.FLAG_UPDATE_CURRENT;
-
-        if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-            pendingIntentFlags |= PendingIntent.FLAG_IMMUTABLE;
-
-        // Set onClick action
-        views.setOnClickPendingIntent(
-                R.id.appwidget_layout,
-                PendingIntent.getBroadcast(
-                        context,
-                        appWidgetId,
-                        new Intent(context, WidgetProvider.class)
-                                .putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId)
-                                .setAction(WidgetProvider.APPWIDGET_CLICK),
-                        pendingIntentFlags)
+        // Update widget
+        int attempt = inputData.getInt(WidgetUpdate.EXTRA_APPWIDGET_ATTEMPT, 0) +
+                getRunAttemptCount();
+        long dueTime = inputData.getLong(WidgetUpdate.EXTRA_APPWIDGET_DUE_TIME, 0);
+        long queueTime = dueTime > 0 ? Math.max(0, System.currentTimeMillis() - dueTime) : -1;
+        Outcome outcome = refresh(
+                context,
+                options,
+                revalidate,
+                attempt + 1 < MAX_ATTEMPTS,
+                queueTime
         );
 
-        // Update widget
-        AppWidgetManager.getInstance(context).updateAppWidget(appWidgetId, views);
+        // Temporary failure, WorkManager backoff unless the server wants a longer pause
+        if (outcome.status == Outcome.Status.RETRY) {
+            if (outcome.retryAfter <= 0)
+                return Result.retry();
+
+            WidgetUpdate.retry(context, inputData, attempt + 1, outcome.retryAfter);
+            return Result.success();
+        }
 
         // Show toast
         if (showToast) {
             String toastText;
 
-            if (message == null) {
+            if (outcome.status != Outcome.Status.FAILED) {
                 toastText = context.getString(R.string.toast_updated);
             } else {
-                toastText = context.getString(R.string.toast_update_failed) + " " + message;
+                toastText = context.getString(R.string.toast_update_failed) + " " + outcome.message;
             }
 
             context.sendBroadcast(
@@ -114,79 +120,246 @@ public class WidgetWorker extends Worker
             );
         }
 
+        // Done
+        return Result.success();
+    }
+
+    /*
+     * Download, decode and push the widget image. Temporary failures are
+     * reported as RETRY without touching the widget if canRetry is set.
+     * Timings are recorded to WidgetStats, queueTime is -1 if unknown.
+     * The widget state is written once, after the update.
+     */
+    @NonNull
+    @WorkerThread
+    static Outcome refresh(Context context,
+                           @NonNull WidgetOptions options,
+                           boolean revalidate,
+                           boolean canRetry,
+                           long queueTime)
+    {
+        int appWidgetId = options.getAppWidgetId();
+        WidgetState state = new WidgetState(context, appWidgetId);
+        WidgetStats.Run run = new WidgetStats.Run().set(WidgetStats.QUEUE, queueTime);
+        long start = SystemClock.elapsedRealtime();
+        Outcome outcome = refresh(context, options, revalidate, canRetry, state, run);
+
+        boolean success = outcome.status != Outcome.Status.FAILED &&
+                outcome.status != Outcome.Status.RETRY;
+
+        run.set(WidgetStats.TOTAL, SystemClock.elapsedRealtime() - start);
+        run.setSuccess(success);
+        WidgetStats.add(context, appWidgetId, run);
+
+        if (success)
+            state.setCheckedTime(System.currentTimeMillis());
+        state.save();
+
+        return outcome;
+    }
+
+    @NonNull
+    private static Outcome refresh(Context context,
+                                   @NonNull WidgetOptions options,
+                                   boolean revalidate,
+                                   boolean canRetry,
+                                   @NonNull WidgetState state,
+                                   @NonNull WidgetStats.Run run)
+    {
+        int appWidgetId = options.getAppWidgetId();
+        int layoutId = options.getLayoutId();
+        String url = WidgetUtil.expandUrl(context, appWidgetId, options.getUrl());
+
+        // Low resolution preview while downloading, revalidation may end up
+        // with nothing to push, so it is only shown when the full image follows
+        WidgetFetcher.PartialListener listener = null;
+        if (options.getProgressive() && !revalidate) {
+            WidgetDecoder decoder = WidgetDecoder.forWidget(context, options);
+
+            byte[] cached = WidgetCache.get(context, appWidgetId, url);
+            if (cached != null)
+                renderPreview(context, appWidgetId, layoutId, decoder.decodePreview(cached));
+
+            listener = data ->
+                    renderPreview(context, appWidgetId, layoutId, decoder.decodePreview(data));
+        }
+
+        // Download image from url
+        boolean conditional = revalidate && state.hasValidators(url);
+        WidgetFetcher.Response response = WidgetFetcher.fetch(
+                context,
+                url,
+                options.getMaxSize(),
+                conditional ? state.getEtag() : null,
+                conditional ? state.getLastModified() : null,
+                listener
+        );
+        run.set(WidgetStats.CONNECT, response.getConnectTime())
+                .set(WidgetStats.FIRST_BYTE, response.getFirstByteTime())
+                .set(WidgetStats.DOWNLOAD, response.getDownloadTime());
+        state.addTraffic(response.getTraffic());
+        if (response.getData() != null)
+            run.set(WidgetStats.BYTES, response.getData().length);
+
+        // Image was not modified since the last update, nothing to push
+        if (response.isNotModified()) {
+            planNext(options, state, false, response.getFreshness());
+            log(appWidgetId, "not modified");
+            return new Outcome(Outcome.Status.NOT_MODIFIED);
+        }
+
+        // Keep current image until the last attempt
+        if (response.isRetryable() && canRetry) {
+            // Replace the low resolution preview with the full cached image
+            if (listener != null)
+                WidgetRenderer.renderCached(context, options);
+
+            log(appWidgetId, "update failed, will retry: " + response.getMessage());
+            return new Outcome(
+                    Outcome.Status.RETRY,
+                    response.getMessage(),
+                    response.getRetryAfter()
+            );
+        }
+
+        // Server ignores validators, but sent the very same bytes
+        boolean changed = !state.isShowing(url, response.getHash());
+        if (revalidate && !changed) {
+            planNext(options, state, false, response.getFreshness());
+            state.setValidators(url, response.getEtag(), response.getLastModified());
+            log(appWidgetId, "unchanged");
+            return new Outcome(Outcome.Status.UNCHANGED);
+        }
+
+        // Update widget
+        String message = apply(context, options, response, state, run);
+        if (message == null) {
+            planNext(options, state, changed, response.getFreshness());
+            fanOut(context, appWidgetId, url, response);
+        }
+
         // Log result
         if (message == null) {
             log(appWidgetId, "updated");
+            return new Outcome(Outcome.Status.UPDATED);
         } else {
             log(appWidgetId, "update failed: " + message);
+            return new Outcome(Outcome.Status.FAILED, message, 0);
         }
+    }
 
-        // Done
-        return Result.success();
+    /*
+     * Plan when the bucket refreshes an adaptive widget next, between its
+     * refresh interval and its maximum interval.
+     */
+    private static void planNext(@NonNull WidgetOptions options,
+                                 @NonNull WidgetState state,
+                                 boolean changed,
+                                 long freshness)
+    {
+        if (!options.isAdaptive())
+            return;
+
+        state.setChecked(
+                changed,
+                freshness,
+                TimeUnit.MINUTES.toMillis(options.getInterval()),
+                TimeUnit.MINUTES.toMillis(options.getMaxInterval())
+        );
+
+        log(options.getAppWidgetId(), "next check in " +
+                (state.getNextTime() - System.currentTimeMillis()) / 60000 + " minutes");
     }
 
-    private void log(int appWidgetId, String message)
+    private static void log(int appWidgetId, String message)
     {
         Log.i("WidgetWorker", "widget #" + appWidgetId + " " + message);
     }
 
-    @NonNull
-    private String getUserAgent()
+    private static void renderPreview(Context context,
+                                      int appWidgetId,
+                                      int layoutId,
+                                      @Nullable Bitmap bitmap)
     {
-        Context context = getApplicationContext();
-        StringBuilder ua = new StringBuilder("WebImageWidget/");
-
-        try {
-            PackageInfo packageInfo = context.getPackageManager()
-                    .getPackageInfo(context.getPackageName(), 0);
-            ua.append(packageInfo.versionName);
-        } catch (PackageManager.NameNotFoundException e) {
-            ua.append("DEV");
-        }
+        if (bitmap == null)
+            return;
 
-        return ua.append(" (Android/").append(Build.VERSION.RELEASE).append(")").toString();
+        log(appWidgetId, "preview " + bitmap.getWidth() + "x" + bitmap.getHeight());
+        WidgetRenderer.renderPreview(context, appWidgetId, layoutId, bitmap);
     }
 
-    private boolean download(String url)
+    /*
+     * Decode response at the widget size, cache it and push it to the widget,
+     * returns failure message or null on success.
+     */
+    private static String apply(Context context,
+                                @NonNull WidgetOptions options,
+                                @NonNull WidgetFetcher.Response response,
+                                @NonNull WidgetState state,
+                                @Nullable WidgetStats.Run run)
     {
-        int rc = -1;
-
-        try {
-            HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
-            con.setRequestProperty("User-Agent", getUserAgent());
-            con.setConnectTimeout(10000);  // 10 sec
-            con.setReadTimeout(30000);  // 30 sec
-            rc = con.getResponseCode();
-            con.connect();
-
-            InputStream inputStream = con.getInputStream();
-            bitmap = BitmapFactory.decodeStream(inputStream);
-            inputStream.close();
-
-            if (bitmap == null) {
-                message = "not an image";
-                return false;
-            }
+        int appWidgetId = options.getAppWidgetId();
+        String url = WidgetUtil.expandUrl(context, appWidgetId, options.getUrl());
+        byte[] data = response.getData();
+        Bitmap bitmap = null;
+        String message;
 
-            return true;
-        } catch (MalformedURLException e) {
-            message = "malformed url";
-        } catch (UnknownHostException e) {
-            message = "unknown host";
-        } catch (SocketTimeoutException e) {
-            message = "connect/read timeout";
-        } catch (ConnectException e) {
-            message = "unable to connect";
-        } catch (FileNotFoundException e) {
-            if (rc == 404) {
-                message = "file not found";
-            } else {
-                message = "http response: " + rc;
-            }
-        } catch (Exception e) {
-            message = e.toString();
+        if (data == null) {
+            message = response.getMessage();
+        } else {
+            long start = SystemClock.elapsedRealtime();
+            bitmap = WidgetDecoder.forWidget(context, options).decode(data);
+            message = bitmap == null ? "not an image" : null;
+            if (run != null)
+                run.set(WidgetStats.DECODE, SystemClock.elapsedRealtime() - start);
+        }
+
+        // Remember cache validators for the next revalidation, failed update
+        // resets the widget image, so it must not be revalidated
+        if (bitmap != null) {
+            WidgetCache.put(context, appWidgetId, url, data);
+            state.setValidators(url, response.getEtag(), response.getLastModified())
+                    .setHash(response.getHash());
+        } else {
+            state.setValidators(url, null, null).setHash(null).setNextTime(0);
         }
 
-        return false;
+        long start = SystemClock.elapsedRealtime();
+        WidgetRenderer.render(context, appWidgetId, options.getLayoutId(), bitmap);
+        if (run != null)
+            run.set(WidgetStats.PUSH, SystemClock.elapsedRealtime() - start);
+
+        return message;
+    }
+
+    /*
+     * Push the same download to the other widgets showing this url.
+     */
+    private static void fanOut(Context context,
+                               int appWidgetId,
+                               String url,
+                               @NonNull WidgetFetcher.Response response)
+    {
+        for (int otherWidgetId : WidgetUtil.getAppWidgetIds(context)) {
+            if (otherWidgetId == appWidgetId)
+                continue;
+
+            WidgetOptions options = new WidgetOptions(context, otherWidgetId);
+            if (!url.equals(WidgetUtil.expandUrl(context, otherWidgetId, options.getUrl())))
+                continue;
+
+            // Widget does not accept images this large, it reports it on its own refresh
+            if (response.getData().length > options.getMaxSize())
+                continue;
+
+            WidgetState state = new WidgetState(context, otherWidgetId);
+            if (state.isShowing(url, response.getHash()))
+                continue;
+
+            String message = apply(context, options, response, state, null);
+            state.save();
+            if (message == null)
+                log(otherWidgetId, "updated from widget #" + appWidgetId);
+        }
     }
 }
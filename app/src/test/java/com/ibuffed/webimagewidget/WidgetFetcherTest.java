@@ -0,0 +1,150 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/*
+ * WidgetFetcher with the default transport against a local mock server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WidgetFetcherTest
+{
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final byte[] BODY = "not really an image".getBytes();
+
+    private Context context;
+    private MockWebServer server;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        context = ApplicationProvider.getApplicationContext();
+        server = new MockWebServer();
+        server.start();
+        url = server.url("/image.png").toString();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.shutdown();
+        WidgetFetcher.reset();
+        WidgetCircuitBreaker.reset();
+    }
+
+    @NonNull
+    private WidgetFetcher.Response fetch(String etag)
+    {
+        return WidgetFetcher.fetch(context, url, MAX_SIZE, etag, null, null);
+    }
+
+    @Test
+    public void downloadsBody() throws InterruptedException
+    {
+        server.enqueue(new MockResponse()
+                .setBody(new Buffer().write(BODY))
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "max-age=60"));
+
+        WidgetFetcher.Response response = fetch(null);
+        RecordedRequest request = server.takeRequest();
+
+        assertArrayEquals(BODY, response.getData());
+        assertEquals("\"v1\"", response.getEtag());
+        assertEquals(60000, response.getFreshness());
+        assertTrue(request.getHeader("Accept").contains("image/webp"));
+        assertTrue(request.getHeader("User-Agent").startsWith("WebImageWidget/"));
+        assertEquals(BODY.length, response.getTraffic());
+    }
+
+    @Test
+    public void revalidatesWithEtag() throws InterruptedException
+    {
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        WidgetFetcher.Response response = fetch("\"v1\"");
+
+        assertTrue(response.isNotModified());
+        assertNull(response.getData());
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void sharesRecentDownload()
+    {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(BODY)));
+
+        fetch(null);
+        WidgetFetcher.Response response = fetch(null);
+
+        assertArrayEquals(BODY, response.getData());
+        assertEquals(0, response.getTraffic());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void refusesOversizedBody()
+    {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(new byte[4096])));
+
+        WidgetFetcher.Response response =
+                WidgetFetcher.fetch(context, url, 1024, null, null, null);
+
+        assertNull(response.getData());
+        assertFalse(response.isRetryable());
+        assertTrue(response.getMessage().startsWith("too large"));
+    }
+
+    @Test
+    public void serverErrorIsRetryable()
+    {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "120"));
+
+        WidgetFetcher.Response response = fetch(null);
+
+        assertNull(response.getData());
+        assertTrue(response.isRetryable());
+        assertEquals(120000, response.getRetryAfter());
+    }
+
+    @Test
+    public void failingHostIsLeftAlone()
+    {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(500));
+            assertTrue(fetch(null).isRetryable());
+        }
+
+        WidgetFetcher.Response response = fetch(null);
+
+        assertTrue(response.isRetryable());
+        assertTrue(response.getRetryAfter() > 0);
+        assertEquals(3, server.getRequestCount());
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Configuration;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.WorkQuery;
+import androidx.work.testing.SynchronousExecutor;
+import androidx.work.testing.TestDriver;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAppWidgetManager;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+
+/*
+ * Many configured widgets against a local server: the widgets are installed
+ * through the settings store, WidgetProvider.onUpdate is broadcast, then every
+ * queued update and the interval bucket run. Size and server behaviour are
+ * set with -Dloadtest.widgets, -Dloadtest.urls, -Dloadtest.latency (ms) and
+ * -Dloadtest.errors (fraction of 503 responses).
+ *
+ * API 27 keeps decoding on BitmapFactory, which Robolectric can shadow.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+public class WidgetLoadTest
+{
+    private static final int WIDGETS = Integer.getInteger("loadtest.widgets", 200);
+    private static final int URLS = Integer.getInteger("loadtest.urls", 50);
+    private static final long LATENCY = Long.getLong("loadtest.latency", 20);
+    private static final double ERRORS =
+            Double.parseDouble(System.getProperty("loadtest.errors", "0.2"));
+
+    // Rounds of queued updates, enough for every retry attempt
+    private static final int MAX_ROUNDS = 5;
+
+    // Attempts of an update, as in WidgetWorker
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Time between rounds, longer than any circuit breaker pause
+    private static final Duration ROUND_TIME = Duration.ofMinutes(31);
+
+    // Consecutive failures that open the circuit breaker
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private Context context;
+    private MockWebServer server;
+    private ImageServer imageServer;
+    private int[] appWidgetIds;
+
+    /*
+     * Same image at every path, ETag is the path, errorRate of the
+     * requests fail with 503.
+     */
+    private static class ImageServer extends Dispatcher
+    {
+        private final byte[] image;
+        private final double errorRate;
+        private final Random random = new Random(1);
+
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger notModified = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        int failures;
+        int maxFailures;
+
+        ImageServer(byte[] image, double errorRate)
+        {
+            this.image = image;
+            this.errorRate = errorRate;
+        }
+
+        @NonNull
+        @Override
+        public MockResponse dispatch(@NonNull RecordedRequest request)
+        {
+            MockResponse response = new MockResponse()
+                    .setHeadersDelay(LATENCY, TimeUnit.MILLISECONDS);
+            String etag = "\"" + request.getPath() + "\"";
+            boolean fail;
+
+            requests.incrementAndGet();
+
+            synchronized (random) {
+                fail = random.nextDouble() < errorRate;
+                failures = fail ? failures + 1 : 0;
+                maxFailures = Math.max(maxFailures, failures);
+            }
+
+            if (fail) {
+                errors.incrementAndGet();
+                return response.setResponseCode(503);
+            }
+
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                notModified.incrementAndGet();
+                return response.setResponseCode(304);
+            }
+
+            bytes.addAndGet(image.length);
+            return response.setHeader("ETag", etag).setBody(new Buffer().write(image));
+        }
+    }
+
+    @NonNull
+    private static byte[] createImage() throws IOException
+    {
+        BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, x * 0x010000 + y * 0x000100 + (x ^ y));
+
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        context = ApplicationProvider.getApplicationContext();
+        WorkManagerTestInitHelper.initializeTestWorkManager(
+                context,
+                new Configuration.Builder()
+                        .setExecutor(new SynchronousExecutor())
+                        .setMinimumLoggingLevel(Log.WARN)
+                        .build()
+        );
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.shutdown();
+        WidgetFetcher.reset();
+        WidgetCircuitBreaker.reset();
+        WidgetBitmapPool.clear();
+        WidgetConfig.reset();
+    }
+
+    @NonNull
+    private String getUrl(int appWidgetId)
+    {
+        return server.url("/image-" + appWidgetId % URLS + ".png").toString();
+    }
+
+    /*
+     * Bind widgets to the host and configure them the way the settings
+     * screen does, hourly refresh.
+     */
+    private void installWidgets()
+    {
+        ShadowAppWidgetManager shadowManager =
+                shadowOf(AppWidgetManager.getInstance(context));
+        ComponentName provider = new ComponentName(context, WidgetProvider.class);
+        WidgetConfig config = WidgetConfig.getInstance(context);
+
+        shadowManager.setAllowedToBindAppWidgets(true);
+        appWidgetIds = new int[WIDGETS];
+
+        for (int i = 0; i < WIDGETS; i++) {
+            int appWidgetId = i + 1;
+
+            shadowManager.bindAppWidgetIdIfAllowed(appWidgetId, provider);
+            config.putString("url." + appWidgetId, getUrl(appWidgetId));
+            config.putString("interval." + appWidgetId, "60");
+            config.setConfigured(appWidgetId);
+            appWidgetIds[i] = appWidgetId;
+        }
+    }
+
+    private void broadcastUpdate() throws ExecutionException, InterruptedException
+    {
+        context.sendBroadcast(
+                new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE)
+                        .setClass(context, WidgetProvider.class)
+                        .putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, appWidgetIds)
+        );
+        shadowOf(Looper.getMainLooper()).idle();
+        WidgetProvider.awaitPending();
+    }
+
+    @NonNull
+    private static List<WorkInfo> getWork(WorkInfo.State... states)
+            throws ExecutionException, InterruptedException
+    {
+        return WorkManager.getInstance(ApplicationProvider.getApplicationContext())
+                .getWorkInfos(WorkQuery.fromStates(Arrays.asList(states)))
+                .get();
+    }
+
+    private static boolean hasTagPrefix(@NonNull WorkInfo workInfo, String prefix)
+    {
+        for (String tag : workInfo.getTags())
+            if (tag.startsWith(prefix))
+                return true;
+
+        return false;
+    }
+
+    @NonNull
+    private static List<WorkInfo> getUpdates(WorkInfo.State... states)
+            throws ExecutionException, InterruptedException
+    {
+        List<WorkInfo> updates = new ArrayList<>();
+
+        for (WorkInfo workInfo : getWork(states))
+            if (hasTagPrefix(workInfo, WidgetUpdate.UPDATE_WORKER_TAG))
+                updates.add(workInfo);
+
+        return updates;
+    }
+
+    /*
+     * Run queued one-off updates, retries included, returns how many ran.
+     * The clock moves on after every round, so the delayed retries are due,
+     * recent downloads are stale and the circuit breaker closes again.
+     */
+    private int runUpdates() throws ExecutionException, InterruptedException
+    {
+        TestDriver driver = WorkManagerTestInitHelper.getTestDriver(context);
+        int count = 0;
+
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean ran = false;
+
+            for (WorkInfo workInfo : getUpdates(WorkInfo.State.ENQUEUED)) {
+                driver.setInitialDelayMet(workInfo.getId());
+                driver.setAllConstraintsMet(workInfo.getId());
+                ran = true;
+                count++;
+            }
+
+            if (!ran)
+                break;
+
+            ShadowSystemClock.advanceBy(ROUND_TIME);
+        }
+
+        return count;
+    }
+
+    /*
+     * Run every interval bucket once, returns the number of buckets.
+     */
+    private int runBuckets() throws ExecutionException, InterruptedException
+    {
+        TestDriver driver = WorkManagerTestInitHelper.getTestDriver(context);
+        int count = 0;
+
+        for (WorkInfo workInfo : getWork(WorkInfo.State.ENQUEUED)) {
+            if (!workInfo.getTags().contains(WidgetUpdate.SCHEDULE_WORKER_TAG))
+                continue;
+
+            driver.setPeriodDelayMet(workInfo.getId());
+            driver.setAllConstraintsMet(workInfo.getId());
+            count++;
+        }
+
+        return count;
+    }
+
+    private int countShowing()
+    {
+        int count = 0;
+
+        String hash = WidgetFetcher.getHash(imageServer.image);
+
+        for (int appWidgetId : appWidgetIds)
+            if (new WidgetState(context, appWidgetId).isShowing(getUrl(appWidgetId), hash))
+                count++;
+
+        return count;
+    }
+
+    /*
+     * Updates run so far, every run is recorded to WidgetStats.
+     */
+    private int countRuns()
+    {
+        int count = 0;
+
+        for (int appWidgetId : appWidgetIds)
+            count += WidgetStats.getSummary(context, appWidgetId).getCount();
+
+        return count;
+    }
+
+    private void report(String name, String phase, long start, int workers)
+            throws ExecutionException, InterruptedException
+    {
+        int workRequests = getWork(
+                WorkInfo.State.ENQUEUED,
+                WorkInfo.State.RUNNING,
+                WorkInfo.State.SUCCEEDED,
+                WorkInfo.State.FAILED,
+                WorkInfo.State.BLOCKED,
+                WorkInfo.State.CANCELLED
+        ).size();
+
+        System.out.printf(
+                Locale.US,
+                "%s %s: %d widgets, %d urls, %d ms, %d workers, %d work requests, " +
+                        "%d requests (%d errors, %d not modified), %d bytes, %d showing%n",
+                name,
+                phase,
+                WIDGETS,
+                URLS,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                workers,
+                workRequests,
+                imageServer.requests.get(),
+                imageServer.errors.get(),
+                imageServer.notModified.get(),
+                imageServer.bytes.get(),
+                countShowing()
+        );
+    }
+
+    @Test
+    public void reliableServer() throws Exception
+    {
+        imageServer = new ImageServer(createImage(), 0);
+        server.setDispatcher(imageServer);
+        installWidgets();
+
+        // First update, widgets sharing a url share the download
+        long start = System.nanoTime();
+        broadcastUpdate();
+        int workers = runUpdates();
+        report("reliable", "update", start, workers);
+
+        assertEquals(WIDGETS, countShowing());
+        assertEquals(URLS, imageServer.requests.get());
+
+        // Scheduled revalidation, nothing changed on the server
+        WidgetFetcher.reset();
+        imageServer.requests.set(0);
+        start = System.nanoTime();
+        int buckets = runBuckets();
+        report("reliable", "bucket", start, buckets);
+
+        assertEquals(1, buckets);
+        assertEquals(imageServer.requests.get(), imageServer.notModified.get());
+        assertEquals(WIDGETS, countShowing());
+    }
+
+    @Test
+    public void flakyServer() throws Exception
+    {
+        imageServer = new ImageServer(createImage(), ERRORS);
+        server.setDispatcher(imageServer);
+        installWidgets();
+
+        long start = System.nanoTime();
+        broadcastUpdate();
+        int workers = runUpdates();
+        report("flaky", "update", start, workers);
+
+        int requests = imageServer.requests.get();
+        int rejected = WidgetCircuitBreaker.getRejectedCount();
+        int runs = countRuns();
+
+        System.out.printf(
+                Locale.US,
+                "flaky: %d rejected by the circuit breaker, %d consecutive errors at most%n",
+                rejected,
+                imageServer.maxFailures
+        );
+
+        // Temporary failures are retried until they run out of attempts
+        assertTrue(getWork(WorkInfo.State.FAILED).isEmpty());
+        assertTrue(getUpdates(WorkInfo.State.ENQUEUED).isEmpty());
+        assertTrue(runs <= WIDGETS * MAX_ATTEMPTS);
+
+        // A run makes one request at most, none when the circuit breaker
+        // rejects it or it reuses a download
+        assertTrue(requests + rejected <= runs);
+
+        // Circuit breaker only opens after consecutive errors
+        if (imageServer.maxFailures < FAILURE_THRESHOLD)
+            assertEquals(0, rejected);
+
+        // A widget is left without the image only when its last attempt
+        // failed, which is far less likely than a single error
+        assertTrue(countShowing() >= WIDGETS * (1 - ERRORS));
+    }
+}
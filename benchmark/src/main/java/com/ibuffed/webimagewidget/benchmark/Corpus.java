@@ -0,0 +1,159 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget.benchmark;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+ * Fixed set of encoded images the benchmarks run over. Images are drawn
+ * from a fixed seed instead of shipped as files, so every device decodes
+ * the same pixels: a gradient with shapes and noise, roughly as hard to
+ * compress as a camera snapshot or a chart.
+ */
+public class Corpus
+{
+    private static final int[][] SIZES = {
+            {640, 480},
+            {1920, 1080},
+            {4000, 3000}
+    };
+
+    private static final Map<String, byte[]> images = new HashMap<>();
+
+    public static class Image
+    {
+        final String format;
+        final int width;
+        final int height;
+
+        Image(String format, int width, int height)
+        {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+
+        @NonNull
+        public byte[] getData()
+        {
+            return encode(format, width, height);
+        }
+
+        @NonNull
+        @Override
+        public String toString()
+        {
+            return format + "_" + width + "x" + height;
+        }
+    }
+
+    /*
+     * Every size in every format, as JUnit parameters.
+     */
+    @NonNull
+    public static List<Object[]> parameters()
+    {
+        List<Object[]> parameters = new ArrayList<>();
+
+        for (String format : new String[] {"jpeg", "png", "webp"})
+            for (int[] size : SIZES)
+                parameters.add(new Object[] {new Image(format, size[0], size[1])});
+
+        return parameters;
+    }
+
+    @NonNull
+    private static Bitmap draw(int width, int height)
+    {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        long seed = 17;
+
+        paint.setShader(new LinearGradient(
+                0, 0, width, height,
+                Color.rgb(30, 60, 120),
+                Color.rgb(220, 180, 90),
+                Shader.TileMode.CLAMP
+        ));
+        canvas.drawRect(0, 0, width, height, paint);
+        paint.setShader(null);
+
+        for (int i = 0; i < 200; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            int x = (int) ((seed >>> 33) % width);
+            int y = (int) ((seed >>> 17) % height);
+            int r = (int) ((seed >>> 41) % (Math.min(width, height) / 8)) + 1;
+
+            paint.setColor((int) seed | 0xff000000);
+            canvas.drawCircle(x, y, r, paint);
+        }
+
+        // Sensor-like noise keeps encoders from doing unrealistically well
+        int[] row = new int[width];
+        for (int y = 0; y < height; y += 2) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                row[x] ^= (int) (seed >>> 61) * 0x010101;
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+
+        return bitmap;
+    }
+
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private static Bitmap.CompressFormat getFormat(@NonNull String format)
+    {
+        switch (format) {
+            case "jpeg":
+                return Bitmap.CompressFormat.JPEG;
+            case "png":
+                return Bitmap.CompressFormat.PNG;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+            return Bitmap.CompressFormat.WEBP_LOSSY;
+
+        return Bitmap.CompressFormat.WEBP;
+    }
+
+    @NonNull
+    static synchronized byte[] encode(@NonNull String format, int width, int height)
+    {
+        String key = format + "_" + width + "x" + height;
+        byte[] data = images.get(key);
+
+        if (data != null)
+            return data;
+
+        Bitmap bitmap = draw(width, height);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        bitmap.compress(getFormat(format), 90, outputStream);
+        bitmap.recycle();
+
+        data = outputStream.toByteArray();
+        images.put(key, data);
+
+        return data;
+    }
+}
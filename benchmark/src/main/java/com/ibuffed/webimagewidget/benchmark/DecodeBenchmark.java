@@ -0,0 +1,113 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget.benchmark;
+
+import android.graphics.Bitmap;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.ibuffed.webimagewidget.R;
+import com.ibuffed.webimagewidget.WidgetBitmapPool;
+import com.ibuffed.webimagewidget.WidgetDecoder;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.List;
+
+
+/*
+ * Decode stage of the worker: full size against subsampled to the widget,
+ * pixel formats and bitmap reuse. Time and allocation counts are reported
+ * by BenchmarkRule.
+ */
+@RunWith(Parameterized.class)
+public class DecodeBenchmark
+{
+    // 4x3 cells widget on a xxhdpi phone
+    private static final int WIDGET_WIDTH = 1000;
+    private static final int WIDGET_HEIGHT = 750;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameter
+    public Corpus.Image image;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> parameters()
+    {
+        return Corpus.parameters();
+    }
+
+    @After
+    public void tearDown()
+    {
+        WidgetBitmapPool.clear();
+    }
+
+    /*
+     * Decode with the bitmap handed back to the pool, as the worker does
+     * after each push, or dropped so every decode allocates.
+     */
+    private void measure(WidgetDecoder decoder, boolean preview, boolean pooled)
+    {
+        byte[] data = image.getData();
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning()) {
+            Bitmap bitmap = preview ? decoder.decodePreview(data) : decoder.decode(data);
+
+            state.pauseTiming();
+            if (pooled) {
+                WidgetBitmapPool.put(bitmap);
+            } else {
+                WidgetBitmapPool.clear();
+            }
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void full()
+    {
+        measure(new WidgetDecoder(R.layout.widget_fit_center, 0, 0, false, null), false, false);
+    }
+
+    @Test
+    public void subsampled()
+    {
+        measure(new WidgetDecoder(
+                R.layout.widget_fit_center, WIDGET_WIDTH, WIDGET_HEIGHT, false, null
+        ), false, false);
+    }
+
+    @Test
+    public void subsampledPooled()
+    {
+        measure(new WidgetDecoder(
+                R.layout.widget_fit_center, WIDGET_WIDTH, WIDGET_HEIGHT, false, null
+        ), false, true);
+    }
+
+    @Test
+    public void subsampledMemorySaving()
+    {
+        measure(new WidgetDecoder(
+                R.layout.widget_fit_center, WIDGET_WIDTH, WIDGET_HEIGHT, true, null
+        ), false, false);
+    }
+
+    @Test
+    public void preview()
+    {
+        measure(new WidgetDecoder(
+                R.layout.widget_fit_center, WIDGET_WIDTH, WIDGET_HEIGHT, false, null
+        ), true, false);
+    }
+}
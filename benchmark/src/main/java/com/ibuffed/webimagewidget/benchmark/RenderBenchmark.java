@@ -0,0 +1,99 @@
+/*
+ * This file is released under the GPL.
+ */
+package com.ibuffed.webimagewidget.benchmark;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Parcel;
+import android.widget.RemoteViews;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.ibuffed.webimagewidget.R;
+import com.ibuffed.webimagewidget.WidgetDecoder;
+import com.ibuffed.webimagewidget.WidgetFetcher;
+import com.ibuffed.webimagewidget.WidgetRenderer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.List;
+
+
+/*
+ * Stages around the decode: hashing the body to detect unchanged images,
+ * and building and marshalling the RemoteViews update sent to the launcher.
+ */
+@RunWith(Parameterized.class)
+public class RenderBenchmark
+{
+    private static final int WIDGET_WIDTH = 1000;
+    private static final int WIDGET_HEIGHT = 750;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameter
+    public Corpus.Image image;
+
+    private Context context;
+    private Bitmap bitmap;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> parameters()
+    {
+        return Corpus.parameters();
+    }
+
+    @Before
+    public void setUp()
+    {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        bitmap = new WidgetDecoder(
+                R.layout.widget_fit_center, WIDGET_WIDTH, WIDGET_HEIGHT, false, null
+        ).decode(image.getData());
+    }
+
+    @Test
+    public void hash()
+    {
+        byte[] data = image.getData();
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning())
+            WidgetFetcher.getHash(data);
+    }
+
+    @Test
+    public void createViews()
+    {
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning())
+            WidgetRenderer.createViews(context, 1, R.layout.widget_fit_center, bitmap);
+    }
+
+    /*
+     * Roughly what updateAppWidget costs on the app side.
+     */
+    @Test
+    public void marshalViews()
+    {
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning()) {
+            RemoteViews views =
+                    WidgetRenderer.createViews(context, 1, R.layout.widget_fit_center, bitmap);
+            Parcel parcel = Parcel.obtain();
+
+            views.writeToParcel(parcel, 0);
+            parcel.recycle();
+        }
+    }
+}